@@ -0,0 +1,129 @@
+package reporter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Read an input stream ahead on a background thread, e.g. to decompress a gzip file while the previous 
+ * lines are parsed. Blocks of bytes are passed through a bounded queue.
+ * @author Hui-Jie Lee
+ *
+ */
+public class AsyncInputStream extends InputStream {
+	/** Size of a block read from the underlying stream */
+	private static final int BLOCK_SIZE = 1 << 16;
+	/** Maximum number of blocks read ahead */
+	private static final int QUEUE_CAPACITY = 16;
+	/** Marks the end of the underlying stream in the queue */
+	private static final byte[] EOF = new byte[0];
+	
+	/** Blocks read ahead (byte[]), or the exception that stopped the thread (Throwable) */
+	private ArrayBlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(QUEUE_CAPACITY);
+	/** Block being read */
+	private byte[] block;
+	/** Position in the block being read */
+	private int pos;
+	/** True once the end of the stream has been read */
+	private boolean eof;
+	/** Background thread */
+	private Thread thread;
+	
+	/**
+	 * Constructor. Start reading in the background.
+	 * @param in underlying stream, closed by the background thread
+	 * @param name name of the thread
+	 */
+	public AsyncInputStream(final InputStream in, String name) {
+		thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					byte[] buf = new byte[BLOCK_SIZE];
+					int n;
+					while ((n = in.read(buf, 0, buf.length)) >= 0) {
+						if (n > 0) {
+							queue.put(Arrays.copyOf(buf, n));
+						}
+					}
+					queue.put(EOF);
+				} catch (InterruptedException e) {
+					//closed
+				} catch (Throwable t) {
+					try {
+						queue.put(t);
+					} catch (InterruptedException e) {
+						//closed
+					}
+				} finally {
+					try {
+						in.close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Wait for the next block if the current one has been read
+	 * @return false at the end of the stream
+	 * @throws IOException
+	 */
+	private boolean nextBlock() throws IOException {
+		while (!eof && (block == null || pos == block.length)) {
+			Object item;
+			try {
+				item = queue.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while reading ahead");
+			}
+			if (item == EOF) {
+				eof = true;
+			} else if (item instanceof byte[]) {
+				block = (byte[]) item;
+				pos = 0;
+			} else if (item instanceof IOException) {
+				throw (IOException) item;
+			} else if (item instanceof RuntimeException) {
+				throw (RuntimeException) item;
+			} else {
+				throw (Error) item;
+			}
+		}
+		return !eof;
+	}
+	
+	public int read() throws IOException {
+		if (!nextBlock()) {
+			return -1;
+		}
+		return block[pos++] & 0xff;
+	}
+	
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!nextBlock()) {
+			return -1;
+		}
+		int n = Math.min(len, block.length - pos);
+		System.arraycopy(block, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+	
+	/**
+	 * Stop the background thread
+	 */
+	public void close() {
+		eof = true;
+		thread.interrupt();
+	}
+	
+}
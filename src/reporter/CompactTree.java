@@ -0,0 +1,143 @@
+package reporter;
+
+/**
+ * Immutable topology of a tree stored in int arrays indexed by nodeNum (see Tree.setNodeNum()):
+ * parent, first child and next sibling of each node, and the nodes in preorder.
+ * A topology is built once per run and shared by all mappings ({@link SiteMapping}), 
+ * which only hold the states, times and substitution events of their site in flat arrays.
+ * Children keep the order of the Tree they were built from.
+ * @author Hui-Jie Lee
+ *
+ */
+public class CompactTree {
+	/** Parent of each node, -1 for the root */
+	private int[] parent;
+	/** First child of each node, -1 for a leaf */
+	private int[] firstChild;
+	/** Next sibling of each node, -1 for the last child and the root */
+	private int[] nextSibling;
+	/** Nodes in preorder, starting with the root */
+	private int[] preorder;
+	/** Name of each node, "" for internal nodes */
+	private String[] name;
+	/** nodeNum of the root */
+	private int root;
+	
+	/**
+	 * Constructor. Copy the topology of a tree.
+	 * The nodes must have been numbered (Tree.setNodeNum()).
+	 * @param t tree
+	 */
+	public CompactTree(Tree t) {
+		int n = t.getNumBranches() + 1;
+		this.parent = new int[n];
+		this.firstChild = new int[n];
+		this.nextSibling = new int[n];
+		this.preorder = new int[n];
+		this.name = new String[n];
+		this.root = t.getRoot().getNodeNum();
+		for (int i = 0; i < n; i++) {
+			TreeNode node = t.getNodeByNodeNum(i);
+			parent[i] = node.isRoot() ? -1 : node.parent().getNodeNum();
+			name[i] = node.getName();
+			firstChild[i] = node.isLeaf() ? -1 : node.getChild(0).getNodeNum();
+			nextSibling[i] = -1;
+			for (int c = 0; c + 1 < node.numberChildren(); c++) {
+				nextSibling[node.getChild(c).getNodeNum()] = node.getChild(c+1).getNodeNum();
+			}
+		}
+		//preorder without recursion: go down to the first child, or else to the next sibling of the closest ancestor
+		int k = 0;
+		int node = root;
+		while (node >= 0) {
+			preorder[k++] = node;
+			if (firstChild[node] >= 0) {
+				node = firstChild[node];
+			} else {
+				while (node >= 0 && nextSibling[node] < 0) {
+					node = parent[node];
+				}
+				if (node >= 0) node = nextSibling[node];
+			}
+		}
+	}
+	
+	/**
+	 * Return the number of nodes
+	 * @return number of nodes
+	 */
+	public int getNumNodes() {
+		return parent.length;
+	}
+	
+	/**
+	 * Return the number of branches
+	 * @return number of branches
+	 */
+	public int getNumBranches() {
+		return parent.length - 1;
+	}
+	
+	/**
+	 * Return the root
+	 * @return nodeNum of the root
+	 */
+	public int getRoot() {
+		return root;
+	}
+	
+	/**
+	 * Return the parent of a node
+	 * @param nodeNum
+	 * @return parent nodeNum, -1 for the root
+	 */
+	public int getParent(int nodeNum) {
+		return parent[nodeNum];
+	}
+	
+	/**
+	 * Return the first child of a node
+	 * @param nodeNum
+	 * @return nodeNum of the first child, -1 for a leaf
+	 */
+	public int getFirstChild(int nodeNum) {
+		return firstChild[nodeNum];
+	}
+	
+	/**
+	 * Return the next sibling of a node
+	 * @param nodeNum
+	 * @return nodeNum of the next child of the parent, -1 for the last child
+	 */
+	public int getNextSibling(int nodeNum) {
+		return nextSibling[nodeNum];
+	}
+	
+	/**
+	 * Check whether a node is a leaf
+	 * @param nodeNum
+	 * @return true if the node has no child
+	 */
+	public boolean isLeaf(int nodeNum) {
+		return firstChild[nodeNum] < 0;
+	}
+	
+	/**
+	 * Return the k-th node in preorder
+	 * @param k index in preorder, 0 for the root
+	 * @return nodeNum
+	 */
+	public int getPreorder(int k) {
+		return preorder[k];
+	}
+	
+	/**
+	 * Return the name of a node
+	 * @param nodeNum
+	 * @return name, "" for internal nodes
+	 */
+	public String getName(int nodeNum) {
+		return name[nodeNum];
+	}
+	
+}
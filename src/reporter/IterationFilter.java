@@ -0,0 +1,76 @@
+package reporter;
+
+/**
+ * MCMC iterations of a .map file that are kept: the first burnin iterations are discarded,
+ * then one iteration out of thin is kept, starting with the first one after the burn-in.
+ * The records of discarded iterations are skipped without being parsed.
+ * @author Hui-Jie Lee
+ *
+ */
+public class IterationFilter {
+	/** Number of iterations / records read from each file */
+	private int C;
+	/** Number of iterations discarded at the start */
+	private int burnin;
+	/** One iteration out of thin is kept after the burn-in */
+	private int thin;
+	
+	/**
+	 * Constructor keeping all iterations
+	 * @param C number of iterations read from each file
+	 */
+	public IterationFilter(int C) {
+		this(C, 0, 1);
+	}
+	
+	/**
+	 * Constructor
+	 * @param C number of iterations read from each file
+	 * @param burnin number of iterations discarded at the start, smaller than C so that one iteration is kept
+	 * @param thin one iteration out of thin is kept after the burn-in
+	 * @throws IllegalArgumentException if burnin is not in [0, C) or thin is smaller than 1
+	 */
+	public IterationFilter(int C, int burnin, int thin) {
+		if (burnin < 0 || thin < 1 || burnin >= C) {
+			throw new IllegalArgumentException("Invalid burn-in / thinning: C = " + C + ", burn-in = " + burnin + ", thinning = " + thin);
+		}
+		this.C = C;
+		this.burnin = burnin;
+		this.thin = thin;
+	}
+	
+	/**
+	 * Return the number of iterations read from each file, kept or not
+	 * @return C
+	 */
+	public int getNumRecords() {
+		return C;
+	}
+	
+	/**
+	 * Return the number of iterations kept, i.e. the width of the statistics
+	 * @return number of kept iterations
+	 */
+	public int getNumKept() {
+		return (C - burnin + thin - 1) / thin;
+	}
+	
+	/**
+	 * Return the index in the file of a kept iteration
+	 * @param kept index of the iteration among the kept ones
+	 * @return index of the record in the file
+	 */
+	public int getRecord(int kept) {
+		return burnin + kept * thin;
+	}
+	
+	/**
+	 * Check whether an iteration is kept
+	 * @param record index of the iteration in the file
+	 * @return true if it is kept
+	 */
+	public boolean isKept(int record) {
+		return record >= burnin && (record - burnin) % thin == 0;
+	}
+	
+}
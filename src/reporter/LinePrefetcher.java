@@ -0,0 +1,118 @@
+package reporter;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * I/O stage of the read-ahead pipeline of {@link SiteWindow}.
+ * A background thread reads the .map files of consecutive sites and puts a copy of each mapping line 
+ * that is kept into a bounded queue. When the queue is full the thread waits, so it never
+ * runs more than a fixed number of lines ahead of the parser.
+ * @author Hui-Jie Lee
+ *
+ */
+public class LinePrefetcher implements Runnable {
+	
+	/** Opens the .map files */
+	private MapInput input;
+	/** Filename prefix */
+	private String name;
+	/** First site to be read */
+	private int firstSite;
+	/** Site after the last one to be read */
+	private int endSite;
+	/** Lines read ahead (byte[]), or the exception that stopped the thread (Throwable) */
+	private ArrayBlockingQueue<Object> queue;
+	/** Background thread */
+	private Thread thread;
+	
+	/**
+	 * Constructor
+	 * @param input opens the .map files and selects the iterations that are kept
+	 * @param name filename prefix
+	 * @param firstSite first site to be read
+	 * @param endSite site after the last one to be read
+	 * @param capacity maximum number of lines read ahead
+	 */
+	public LinePrefetcher(MapInput input, String name, int firstSite, int endSite, int capacity) {
+		this.input = input;
+		this.name = name;
+		this.firstSite = firstSite;
+		this.endSite = endSite;
+		this.queue = new ArrayBlockingQueue<Object>(capacity);
+	}
+	
+	/**
+	 * Start reading in the background
+	 */
+	public void start() {
+		thread = new Thread(this, "LinePrefetcher-" + name + "-" + firstSite);
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Stop the background thread
+	 */
+	public void close() {
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+	
+	/**
+	 * Return the next line, waiting for it if needed. Lines come site by site, one per kept iteration.
+	 * @return copy of the line, owned by the caller
+	 * @throws IOException if the background thread could not read the line
+	 */
+	public byte[] take() throws IOException {
+		Object item;
+		try {
+			item = queue.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the next line");
+		}
+		if (item instanceof byte[]) {
+			return (byte[]) item;
+		} else if (item instanceof IOException) {
+			throw (IOException) item;
+		} else if (item instanceof RuntimeException) {
+			throw (RuntimeException) item;
+		}
+		throw (Error) item;
+	}
+	
+	public void run() {
+		try {
+			for (int site = firstSite; site < endSite; site++) {
+				String inputMap = input.fileName(name, site);
+				LineSource r = input.open(name, site);
+				try {
+					IterationFilter filter = input.getFilter();
+					for (int record = 0; record < filter.getNumRecords(); record++) {
+						if (filter.isKept(record)) {
+							int length = input.getLayout().readMapping(r, inputMap);
+							queue.put(Arrays.copyOf(r.getBuffer(), length));
+						} else {
+							input.getLayout().skipRecord(r, inputMap);
+						}
+					}
+				} finally {
+					r.close();
+				}
+			}
+		} catch (InterruptedException e) {
+			//closed
+		} catch (Throwable t) {
+			//passed to the parser, which waits for the next line
+			try {
+				queue.put(t);
+			} catch (InterruptedException e) {
+				//closed
+			}
+		}
+	}
+	
+}
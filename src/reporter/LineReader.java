@@ -0,0 +1,143 @@
+package reporter;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Read lines of an ASCII file as raw bytes into a reusable buffer.
+ * Unlike BufferedReader.readLine(), no characters are decoded and no String is created,
+ * which matters for mapping lines that are hundreds of KB long.
+ * @author Hui-Jie Lee
+ *
+ */
+public class LineReader implements LineSource {
+	/** Size of a block read from the stream */
+	private static final int BLOCK_SIZE = 1 << 16;
+
+	/** Underlying input stream */
+	private InputStream in;
+	/** Block read from the stream */
+	private byte[] block;
+	/** Current position in the block */
+	private int blockPos;
+	/** Number of bytes in the block */
+	private int blockLimit;
+	/** Buffer holding the current line, reused for every line */
+	private byte[] line;
+	/** Length of the current line */
+	private int length;
+
+	/**
+	 * Constructor
+	 * @param in input stream
+	 */
+	public LineReader(InputStream in) {
+		this.in = in;
+		this.block = new byte[BLOCK_SIZE];
+		this.line = new byte[BLOCK_SIZE];
+	}
+
+	/**
+	 * Read the next line into the line buffer. The line terminator ("\n" or "\r\n") is not included.
+	 * @return length of the line, or -1 at the end of the stream
+	 * @throws IOException
+	 */
+	public int readLine() throws IOException {
+		length = 0;
+		boolean any = false;
+		while (true) {
+			if (blockPos >= blockLimit) {
+				blockLimit = in.read(block, 0, block.length);
+				blockPos = 0;
+				if (blockLimit <= 0) {
+					blockLimit = 0;
+					break;
+				}
+			}
+			any = true;
+			int start = blockPos;
+			while (blockPos < blockLimit && block[blockPos] != '\n') {
+				blockPos++;
+			}
+			append(start, blockPos - start);
+			if (blockPos < blockLimit) { //found '\n'
+				blockPos++;
+				break;
+			}
+		}
+		if (!any) {
+			return -1;
+		}
+		if (length > 0 && line[length-1] == '\r') {
+			length--;
+		}
+		return length;
+	}
+
+	/**
+	 * Skip the next line without copying it. The line buffer is not modified.
+	 * @return false at the end of the stream
+	 * @throws IOException
+	 */
+	public boolean skipLine() throws IOException {
+		boolean any = false;
+		while (true) {
+			if (blockPos >= blockLimit) {
+				blockLimit = in.read(block, 0, block.length);
+				blockPos = 0;
+				if (blockLimit <= 0) {
+					blockLimit = 0;
+					return any;
+				}
+			}
+			any = true;
+			while (blockPos < blockLimit && block[blockPos] != '\n') {
+				blockPos++;
+			}
+			if (blockPos < blockLimit) { //found '\n'
+				blockPos++;
+				return true;
+			}
+		}
+	}
+	
+	/**
+	 * Return the buffer holding the current line. It is overwritten by the next call of readLine().
+	 * @return line buffer
+	 */
+	public byte[] getBuffer() {
+		return line;
+	}
+
+	/**
+	 * Return the length of the current line
+	 * @return length
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Close the underlying stream
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Append bytes of the block to the line buffer, growing it if needed
+	 * @param start start in the block
+	 * @param count number of bytes
+	 */
+	private void append(int start, int count) {
+		if (length + count > line.length) {
+			byte[] bigger = new byte[Math.max(line.length * 2, length + count)];
+			System.arraycopy(line, 0, bigger, 0, length);
+			line = bigger;
+		}
+		System.arraycopy(block, start, line, length, count);
+		length += count;
+	}
+
+}
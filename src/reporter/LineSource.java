@@ -0,0 +1,44 @@
+package reporter;
+
+import java.io.IOException;
+
+/**
+ * Lines of an ASCII file as raw bytes in a reusable buffer.
+ * @author Hui-Jie Lee
+ *
+ */
+public interface LineSource {
+	
+	/**
+	 * Read the next line into the line buffer. The line terminator ("\n" or "\r\n") is not included.
+	 * @return length of the line, or -1 at the end of the file
+	 * @throws IOException
+	 */
+	public int readLine() throws IOException;
+	
+	/**
+	 * Skip the next line without copying it. The line buffer is not modified.
+	 * @return false at the end of the file
+	 * @throws IOException
+	 */
+	public boolean skipLine() throws IOException;
+	
+	/**
+	 * Return the buffer holding the current line. It is overwritten by the next call of readLine().
+	 * @return line buffer
+	 */
+	public byte[] getBuffer();
+	
+	/**
+	 * Return the length of the current line
+	 * @return length
+	 */
+	public int getLength();
+	
+	/**
+	 * Close the file
+	 * @throws IOException
+	 */
+	public void close() throws IOException;
+	
+}
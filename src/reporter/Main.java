@@ -36,6 +36,24 @@ public class Main {
 	 * @param args[3]: prefix of filename
 	 * @param args[4]: outgroup filename, currently will produce incorrect tree topology if an ourgroup file is not given.
 	 * @param args[5]: gtr parameter file
+	 * @param args[6...]: optional, --threads=N number of threads processing the site windows (default 1).
+	 *                    The windows are cut into chunks of 64 windows, each processed by one thread, so at most
+	 *                    one thread per chunk is started. The output is the same for any N.
+	 *                    --parallel=iterations to split the iterations of each window across the N threads instead,
+	 *                    with the same output
+	 *                    --prefetch=N number of sites read and parsed ahead by background threads (default 0)
+	 *                    --inputDir=PATH directory of the .map files, read from the filesystem (memory-mapped if large)
+	 *                    (default: read as resources of the class path)
+	 *                    --mappingsPerIteration=N, --keptMapping=K, --separatorLines=S record layout of the .map files:
+	 *                    N mapping lines per MCMC iteration, of which line K is kept, then S separator lines 
+	 *                    (default: 2, 0, 1 as written by PhyloBayes)
+	 *                    --burnin=B, --thin=K discard the first B iterations (B < number of iterations), 
+	 *                    then keep one iteration out of K
+	 *                    (default: 0, 1). The output has one column per kept iteration.
+	 *                    --cacheDir=PATH load the mappings from binary site caches written by SiteCacheConverter
+	 *                    --bundle=FILE read the .map files from a bundle written by MapBundlePacker
+	 *                    --lineCache=MB keep parsed mapping lines in a cache of up to MB megabytes, 
+	 *                    so that repeated lines are parsed once
 	 */
 	public static void main(String args[]) {
 		int start = Integer.parseInt(args[0]);
@@ -44,10 +62,13 @@ public class Main {
 		String name = args[3];
 		String outgroup = args[4];
 		String gtr_param = args[5];		
-		if (args.length == 6) {	
-			MappingParser parse = new MappingParser(start, end, C, name, outgroup);	
+		if (args.length >= 6) {	
+			MappingOptions options = MappingOptions.parse(Arrays.copyOfRange(args, 6, args.length));
+			MappingParser parse = new MappingParser(start, end, C, name, outgroup, options);	
 			
 			Main main = new Main(parse);
+			//number of iterations kept after burn-in and thinning
+			C = parse.getNumIterations();
 			// call GTR to calculate log P(M^{(c)}, X|mu_GTR) for each mapping.
 			SufficientStatistics gtrSuff = new SufficientStatistics(true, parse.getBranchNum(), C, parse.getPropStates(), parse.getNumberOfChanges());
 			Object[] param = main.gtrParameter(gtr_param);
@@ -0,0 +1,132 @@
+package reporter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Single file holding the .map files of consecutive sites, written by {@link MapBundlePacker}.
+ * The bundle is memory-mapped once, and the .map file of any site is found in O(1) through the index.
+ * 
+ * Layout (big endian): magic, version, index of the first site, number of sites N, 
+ * offset of the .map file of each site and of the end of the last one (N+1 longs), 
+ * then the bytes of the .map files in order: unchanged in version 1, one gzip member per site in version 2.
+ * Compressed sites are independent, so the sites read by different threads are decompressed in parallel,
+ * each on a background thread ({@link AsyncInputStream}) ahead of its parser.
+ * @author Hui-Jie Lee
+ *
+ */
+public class MapBundle {
+	/** First int of a bundle, "MPBN" */
+	static final int MAGIC = 0x4d50424e;
+	/** Version of the format with the .map files unchanged */
+	static final int VERSION = 1;
+	/** Version of the format with each .map file compressed with gzip */
+	static final int VERSION_GZIP = 2;
+	/** Size of the header before the index */
+	static final int HEADER_SIZE = 16;
+	
+	/** Name of the bundle, for error messages */
+	private String fileName;
+	/** Mapped segments of the bundle */
+	private ByteBuffer[] segments;
+	/** Index of the first site */
+	private int firstSite;
+	/** Offset of the .map file of each site, and of the end of the last one */
+	private long[] offset;
+	/** True if each .map file is compressed */
+	private boolean compressed;
+	
+	/**
+	 * Open and map a bundle
+	 * @param f file
+	 * @throws IOException if the file is not a bundle
+	 */
+	public MapBundle(File f) throws IOException {
+		this.fileName = f.getPath();
+		this.segments = MappedLineReader.map(f);
+		ByteBuffer header = (segments.length > 0) ? segments[0] : ByteBuffer.allocate(0);
+		if (header.limit() < HEADER_SIZE || header.getInt(0) != MAGIC 
+				|| (header.getInt(4) != VERSION && header.getInt(4) != VERSION_GZIP)) {
+			throw new IOException("Not a bundle of this version: " + fileName);
+		}
+		this.compressed = (header.getInt(4) == VERSION_GZIP);
+		this.firstSite = header.getInt(8);
+		int numSites = header.getInt(12);
+		this.offset = new long[numSites + 1];
+		for (int k = 0; k <= numSites; k++) {
+			offset[k] = header.getLong(HEADER_SIZE + 8 * k);
+		}
+	}
+	
+	/**
+	 * Check whether the bundle holds a site
+	 * @param site index of the site
+	 * @return true if the .map file of the site is in the bundle
+	 */
+	public boolean contains(int site) {
+		return site >= firstSite && site - firstSite < offset.length - 1;
+	}
+	
+	/**
+	 * Open the .map file of a site. The reader can be used by another thread than other readers of the bundle.
+	 * @param site index of the site
+	 * @return lines of the .map file
+	 * @throws IOException if the site is not in the bundle
+	 */
+	public LineSource open(int site) throws IOException {
+		if (!contains(site)) {
+			throw new IOException("Site " + site + " is not in the bundle " + fileName);
+		}
+		int k = site - firstSite;
+		if (compressed) {
+			InputStream in = new GZIPInputStream(new SegmentInputStream(offset[k], offset[k+1]), 1 << 16);
+			return new LineReader(new AsyncInputStream(in, "Gunzip-" + fileName + "-" + site));
+		}
+		return new MappedLineReader(segments, offset[k], offset[k+1]);
+	}
+	
+	/**
+	 * Stream over a range of the mapped bundle
+	 */
+	private class SegmentInputStream extends InputStream {
+		/** Current offset in the bundle */
+		private long pos;
+		/** End of the range */
+		private long end;
+		
+		/**
+		 * Constructor
+		 * @param start offset of the first byte of the range
+		 * @param end offset after the last byte of the range
+		 */
+		SegmentInputStream(long start, long end) {
+			this.pos = start;
+			this.end = end;
+		}
+		
+		public int read() {
+			if (pos >= end) {
+				return -1;
+			}
+			int b = segments[(int) (pos / MappedLineReader.SEGMENT_SIZE)].get((int) (pos % MappedLineReader.SEGMENT_SIZE)) & 0xff;
+			pos++;
+			return b;
+		}
+		
+		public int read(byte[] b, int off, int len) {
+			if (pos >= end) {
+				return -1;
+			}
+			ByteBuffer segment = segments[(int) (pos / MappedLineReader.SEGMENT_SIZE)].duplicate();
+			segment.position((int) (pos % MappedLineReader.SEGMENT_SIZE));
+			int n = (int) Math.min(Math.min(len, segment.remaining()), end - pos);
+			segment.get(b, off, n);
+			pos += n;
+			return n;
+		}
+	}
+	
+}
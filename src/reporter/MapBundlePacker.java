@@ -0,0 +1,126 @@
+package reporter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Pack the .map files of consecutive sites into one indexed bundle ({@link MapBundle}).
+ * The .map files can be read compressed (prefix_site.map.gz) and can be written compressed, one gzip member per site.
+ * @author Hui-Jie Lee
+ *
+ */
+public class MapBundlePacker {
+	
+	/**
+	 * Pack the .map files of sites start ... end
+	 * @param args[0]: start index
+	 * @param args[1]: end index
+	 * @param args[2]: prefix of filename
+	 * @param args[3]: bundle filename
+	 * @param args[4...]: optional, --inputDir=PATH directory of the .map files, as for Main
+	 *                    --gzip to compress each site in the bundle
+	 */
+	public static void main(String args[]) {
+		if (args.length < 4) {
+			System.out.println("Argument error.");
+			return;
+		}
+		int start = Integer.parseInt(args[0]);
+		int end = Integer.parseInt(args[1]);
+		String name = args[2];
+		String bundle = args[3];
+		boolean gzip = false;
+		ArrayList<String> rest = new ArrayList<String>();
+		for (int i = 4; i < args.length; i++) {
+			if (args[i].equals("--gzip")) {
+				gzip = true;
+			} else {
+				rest.add(args[i]);
+			}
+		}
+		MappingOptions options = MappingOptions.parse(rest.toArray(new String[rest.size()]));
+		try {
+			pack(start, end, name, new File(bundle), new MapInput(options.getInputDir(), 1), gzip);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Pack the .map files of sites start ... end
+	 * @param start index of the first site
+	 * @param end index of the last site
+	 * @param name filename prefix
+	 * @param bundle bundle file
+	 * @param input opens the .map files
+	 * @param gzip true to compress each site
+	 * @throws IOException
+	 */
+	public static void pack(int start, int end, String name, File bundle, MapInput input, boolean gzip) throws IOException {
+		int numSites = end - start + 1;
+		long[] offset = new long[numSites + 1];
+		RandomAccessFile out = new RandomAccessFile(bundle, "rw");
+		try {
+			out.setLength(0);
+			out.writeInt(MapBundle.MAGIC);
+			out.writeInt(gzip ? MapBundle.VERSION_GZIP : MapBundle.VERSION);
+			out.writeInt(start);
+			out.writeInt(numSites);
+			//the index is written once the offsets are known
+			out.seek(MapBundle.HEADER_SIZE + 8L * offset.length);
+			byte[] buf = new byte[1 << 16];
+			for (int k = 0; k < numSites; k++) {
+				System.out.println("site="+(start+k));
+				offset[k] = out.getFilePointer();
+				InputStream in = input.openStream(name, start + k);
+				OutputStream site = new RandomAccessFileOutputStream(out);
+				if (gzip) {
+					site = new GZIPOutputStream(site, 1 << 16);
+				}
+				try {
+					int n;
+					while ((n = in.read(buf)) > 0) {
+						site.write(buf, 0, n);
+					}
+				} finally {
+					in.close();
+					//ends the gzip member, the bundle itself is not closed
+					site.close();
+				}
+			}
+			offset[numSites] = out.getFilePointer();
+			out.seek(MapBundle.HEADER_SIZE);
+			for (int k = 0; k < offset.length; k++) {
+				out.writeLong(offset[k]);
+			}
+		} finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * Output stream writing at the current position of the bundle. Closing it does not close the bundle.
+	 */
+	private static class RandomAccessFileOutputStream extends OutputStream {
+		/** Bundle being written */
+		private RandomAccessFile out;
+		
+		RandomAccessFileOutputStream(RandomAccessFile out) {
+			this.out = out;
+		}
+		
+		public void write(int b) throws IOException {
+			out.write(b);
+		}
+		
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+	}
+	
+}
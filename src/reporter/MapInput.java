@@ -0,0 +1,192 @@
+package reporter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Open the .map files of a run.
+ * Without an input directory, the files are resources read through the class loader, as before.
+ * With an input directory, the files are read from the filesystem, and memory-mapped if they are large.
+ * With a bundle ({@link MapBundle}), the files are read from the bundle, which is mapped once.
+ * A site whose .map file is missing is read from prefix_site.map.gz instead, if it exists.
+ * Compressed files are decompressed on a background thread ({@link AsyncInputStream}), ahead of the parser.
+ * All files of a run have the same record layout and the same iterations are kept in all of them.
+ * With a cache directory, the parsed mappings are loaded from the binary site caches ({@link SiteCache}) instead.
+ * @author Hui-Jie Lee
+ *
+ */
+public class MapInput {
+	/** Extension of a compressed .map file */
+	public static final String GZIP_EXTENSION = ".gz";
+	
+	/** Directory of the .map files, null to read them as resources */
+	private String directory;
+	/** Layout of the records of the .map files */
+	private RecordLayout layout;
+	/** Iterations kept in each file */
+	private IterationFilter filter;
+	/** Directory of the binary site caches, null to parse the .map files */
+	private String cacheDir;
+	/** Bundle holding the .map files, null to read them one file per site */
+	private MapBundle bundle;
+	
+	/**
+	 * Constructor for files with the layout of PhyloBayes, keeping all iterations
+	 * @param directory directory of the .map files, null to read them as resources
+	 * @param C number of iterations read from each file
+	 */
+	public MapInput(String directory, int C) {
+		this(directory, new RecordLayout(), new IterationFilter(C));
+	}
+	
+	/**
+	 * Constructor
+	 * @param directory directory of the .map files, null to read them as resources
+	 * @param layout layout of the records of the .map files
+	 * @param filter iterations kept in each file
+	 */
+	public MapInput(String directory, RecordLayout layout, IterationFilter filter) {
+		this.directory = directory;
+		this.layout = layout;
+		this.filter = filter;
+	}
+	
+	/**
+	 * Load the parsed mappings from binary site caches instead of the .map files
+	 * @param cacheDir directory of the caches, null to parse the .map files
+	 */
+	public void setCacheDir(String cacheDir) {
+		this.cacheDir = cacheDir;
+	}
+	
+	/**
+	 * Return the directory of the binary site caches
+	 * @return cacheDir, null if the .map files are parsed
+	 */
+	public String getCacheDir() {
+		return cacheDir;
+	}
+	
+	/**
+	 * Open the binary cache of a site
+	 * @param name filename prefix
+	 * @param site index of the site
+	 * @return reader of the cache
+	 * @throws IOException
+	 */
+	public SiteCache.Reader openCache(String name, int site) throws IOException {
+		return new SiteCache.Reader(SiteCache.fileOf(cacheDir, name, site));
+	}
+	
+	/**
+	 * Return the iterations kept in each file
+	 * @return filter
+	 */
+	public IterationFilter getFilter() {
+		return filter;
+	}
+	
+	/**
+	 * Return the layout of the records of the .map files
+	 * @return layout
+	 */
+	public RecordLayout getLayout() {
+		return layout;
+	}
+	
+	/**
+	 * Read the .map files from a bundle
+	 * @param bundle null to read them one file per site
+	 */
+	public void setBundle(MapBundle bundle) {
+		this.bundle = bundle;
+	}
+	
+	/**
+	 * Return the name of the .map file of a site
+	 * @param name filename prefix
+	 * @param site index of the site
+	 * @return filename
+	 */
+	public String fileName(String name, int site) {
+		return name+"_"+site+".map";
+	}
+	
+	/**
+	 * Open the .map file of a site. The plain file is opened first, and prefix_site.map.gz only if it is missing,
+	 * so that a plain file is found with a single lookup.
+	 * @param name filename prefix
+	 * @param site index of the site
+	 * @return lines of the file
+	 * @throws IOException
+	 */
+	public LineSource open(String name, int site) throws IOException {
+		if (bundle != null) {
+			return bundle.open(site);
+		}
+		if (directory != null) {
+			try {
+				return new MappedLineReader(new File(directory, fileName(name, site)));
+			} catch (FileNotFoundException e) {
+				//only available compressed
+			}
+		} else {
+			InputStream in = openPlain(fileName(name, site));
+			if (in != null) {
+				return new LineReader(in);
+			}
+		}
+		return new LineReader(new AsyncInputStream(openCompressed(name, site), "Gunzip-" + fileName(name, site)));
+	}
+	
+	/**
+	 * Open the .map file of a site as a stream of bytes, from the input directory or as a resource.
+	 * Compressed files are decompressed in the calling thread.
+	 * @param name filename prefix
+	 * @param site index of the site
+	 * @return stream
+	 * @throws IOException
+	 */
+	public InputStream openStream(String name, int site) throws IOException {
+		InputStream in = openPlain(fileName(name, site));
+		return (in != null) ? in : openCompressed(name, site);
+	}
+	
+	/**
+	 * Open a plain file from the input directory or as a resource
+	 * @param inputMap filename
+	 * @return stream, null if the file does not exist
+	 * @throws IOException
+	 */
+	private InputStream openPlain(String inputMap) throws IOException {
+		if (directory == null) {
+			return this.getClass().getResourceAsStream(new File("../" + inputMap).getPath().toString());
+		}
+		try {
+			return new FileInputStream(new File(directory, inputMap));
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Open prefix_site.map.gz, decompressed in the calling thread
+	 * @param name filename prefix
+	 * @param site index of the site
+	 * @return stream
+	 * @throws IOException if neither the .map file nor the .map.gz file exists
+	 */
+	private InputStream openCompressed(String name, int site) throws IOException {
+		String inputMap = fileName(name, site) + GZIP_EXTENSION;
+		InputStream in = openPlain(inputMap);
+		if (in == null) {
+			throw new FileNotFoundException(fileName(name, site) + " or " + inputMap + (directory == null ? "" : " in " + directory));
+		}
+		return new GZIPInputStream(in, 1 << 16);
+	}
+	
+}
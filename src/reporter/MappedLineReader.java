@@ -0,0 +1,216 @@
+package reporter;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read lines of an ASCII file that is memory-mapped with FileChannel.map.
+ * The bytes of each line are copied from the mapping into a reusable buffer, without any decoding.
+ * A file is mapped in segments of {@link #SEGMENT_SIZE} bytes, and a reader reads a range of the mapped file,
+ * so that the sites of a bundle ({@link MapBundle}) are read from a single mapping.
+ * A mapping cannot be released explicitly and is only unmapped when it is garbage collected, 
+ * so files smaller than {@link #MAP_THRESHOLD} bytes, such as the .map file of a site, are read 
+ * into the heap instead. Only large files (a bundle) stay mapped, once per run.
+ * @author Hui-Jie Lee
+ *
+ */
+public class MappedLineReader implements LineSource {
+	/** Size of a mapped segment */
+	static final long SEGMENT_SIZE = 1L << 30;
+	/** Files and segments smaller than this are read into the heap instead of being mapped */
+	static final long MAP_THRESHOLD = 1L << 25;
+	
+	/** Mapped segments of the file, shared by all readers of the file */
+	private ByteBuffer[] segments;
+	/** End of the range being read, as an offset in the file */
+	private long end;
+	/** Index of the current segment */
+	private int segmentIndex;
+	/** Current segment, with its own position */
+	private ByteBuffer segment;
+	/** Buffer holding the current line, reused for every line */
+	private byte[] line;
+	/** Length of the current line */
+	private int length;
+	
+	/**
+	 * Constructor. Map and read a whole file.
+	 * @param f file
+	 * @throws IOException
+	 */
+	public MappedLineReader(File f) throws IOException {
+		this(map(f), 0, f.length());
+	}
+	
+	/**
+	 * Constructor. Read a range of a mapped file.
+	 * @param segments segments of the file, see {@link #map(File)}
+	 * @param start offset of the first byte of the range
+	 * @param end offset after the last byte of the range
+	 */
+	public MappedLineReader(ByteBuffer[] segments, long start, long end) {
+		this.segments = segments;
+		this.end = end;
+		this.line = new byte[1 << 16];
+		this.segmentIndex = (int) (start / SEGMENT_SIZE);
+		if (segmentIndex < segments.length) {
+			select(segmentIndex);
+			segment.position((int) (start - segmentIndex * SEGMENT_SIZE));
+		} else { //empty range at the end of the file
+			segment = ByteBuffer.allocate(0);
+		}
+	}
+	
+	/**
+	 * Map a file in segments, or read the segments smaller than {@link #MAP_THRESHOLD}. 
+	 * The file can be closed once it is mapped.
+	 * @param f file
+	 * @return segments, the last one may be shorter
+	 * @throws IOException
+	 */
+	public static ByteBuffer[] map(File f) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(f, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			long size = channel.size();
+			ByteBuffer[] segments = new ByteBuffer[(int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+			for (int k = 0; k < segments.length; k++) {
+				long start = k * SEGMENT_SIZE;
+				segments[k] = load(channel, start, Math.min(SEGMENT_SIZE, size - start));
+			}
+			return segments;
+		} finally {
+			file.close();
+		}
+	}
+	
+	/**
+	 * Map a range of a file if it is at least {@link #MAP_THRESHOLD} bytes long, otherwise read it into the heap
+	 * @param channel channel of the file
+	 * @param start offset of the range
+	 * @param size size of the range, at most Integer.MAX_VALUE
+	 * @return content of the range
+	 * @throws IOException
+	 */
+	static ByteBuffer load(FileChannel channel, long start, long size) throws IOException {
+		if (size >= MAP_THRESHOLD) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+		}
+		ByteBuffer buf = ByteBuffer.allocate((int) size);
+		while (buf.hasRemaining()) {
+			if (channel.read(buf, start + buf.position()) < 0) {
+				throw new EOFException("File truncated while reading");
+			}
+		}
+		buf.flip();
+		return buf;
+	}
+	
+	/**
+	 * Select a segment, limited to the end of the range
+	 * @param k index of the segment
+	 */
+	private void select(int k) {
+		segmentIndex = k;
+		segment = segments[k].duplicate();
+		segment.position(0);
+		segment.limit((int) Math.min(segment.capacity(), end - k * SEGMENT_SIZE));
+	}
+	
+	/**
+	 * Move to the next segment if the current one has been read
+	 * @return false at the end of the range
+	 */
+	private boolean nextSegment() {
+		while (!segment.hasRemaining()) {
+			if (segmentIndex + 1 >= segments.length || (segmentIndex + 1) * SEGMENT_SIZE >= end) {
+				return false;
+			}
+			select(segmentIndex + 1);
+		}
+		return true;
+	}
+	
+	public int readLine() throws IOException {
+		length = 0;
+		boolean any = false;
+		while (true) {
+			if (!nextSegment()) {
+				break;
+			}
+			any = true;
+			int start = segment.position();
+			int limit = segment.limit();
+			int pos = start;
+			while (pos < limit && segment.get(pos) != '\n') {
+				pos++;
+			}
+			append(pos - start);
+			if (pos < limit) { //found '\n'
+				segment.position(pos + 1);
+				break;
+			}
+		}
+		if (!any) {
+			return -1;
+		}
+		if (length > 0 && line[length-1] == '\r') {
+			length--;
+		}
+		return length;
+	}
+	
+	public boolean skipLine() throws IOException {
+		boolean any = false;
+		while (true) {
+			if (!nextSegment()) {
+				return any;
+			}
+			any = true;
+			int limit = segment.limit();
+			int pos = segment.position();
+			while (pos < limit && segment.get(pos) != '\n') {
+				pos++;
+			}
+			if (pos < limit) { //found '\n'
+				segment.position(pos + 1);
+				return true;
+			}
+			segment.position(limit);
+		}
+	}
+	
+	public byte[] getBuffer() {
+		return line;
+	}
+	
+	public int getLength() {
+		return length;
+	}
+	
+	/**
+	 * Nothing to close: the file is closed once it is loaded, and a mapping of a large file 
+	 * is released by the garbage collector
+	 */
+	public void close() throws IOException {
+	}
+	
+	/**
+	 * Copy bytes from the current position of the segment to the line buffer, growing it if needed
+	 * @param count number of bytes
+	 */
+	private void append(int count) {
+		if (length + count > line.length) {
+			byte[] bigger = new byte[Math.max(line.length * 2, length + count)];
+			System.arraycopy(line, 0, bigger, 0, length);
+			line = bigger;
+		}
+		segment.get(line, length, count);
+		length += count;
+	}
+	
+}
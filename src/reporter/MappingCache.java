@@ -0,0 +1,207 @@
+package reporter;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of parsed mapping lines, with least-recently-used eviction.
+ * With fixed branch lengths, a site without substitution has the same mapping line in every iteration,
+ * so repeated lines are parsed once. A line is found by its hash, and the bytes of the line are compared
+ * on a hit, so a hash collision never returns the mapping of another line.
+ * Parsed mappings are read only, so the same mapping is shared by all iterations and windows.
+ * The cache is shared by the parser sessions of all threads. It is split by hash into {@link #STRIPES} 
+ * stripes, each with its own lock, least-recently-used order and an equal share of the capacity, 
+ * so threads looking up different lines rarely wait for each other.
+ * The capacity is in bytes: an entry costs the bytes of the line, the arrays of the mapping 
+ * ({@link SiteMapping#getSizeInBytes()}, about 61 bytes per node plus 9 bytes per event) and {@link #ENTRY_OVERHEAD}.
+ * @author Hui-Jie Lee
+ *
+ */
+public class MappingCache {
+	/** Number of stripes, a power of 2 */
+	static final int STRIPES = 16;
+	/** Estimated bytes of an entry besides the line and the mapping: key, map entry and object headers */
+	static final int ENTRY_OVERHEAD = 96;
+	
+	/** Stripes of the cache, selected by the hash of the line */
+	private Stripe[] stripes;
+	
+	/**
+	 * Constructor
+	 * @param capacity maximum estimated size of the cache in bytes. Each line is copied into the cache.
+	 */
+	public MappingCache(long capacity) {
+		this.stripes = new Stripe[STRIPES];
+		for (int k = 0; k < STRIPES; k++) {
+			stripes[k] = new Stripe(capacity / STRIPES);
+		}
+	}
+	
+	/**
+	 * Return the hash of a line
+	 * @param buf line buffer
+	 * @param length length of the line
+	 * @return hash
+	 */
+	public static int hash(byte[] buf, int length) {
+		int h = 1;
+		for (int i = 0; i < length; i++) {
+			h = 31 * h + buf[i];
+		}
+		return h;
+	}
+	
+	/**
+	 * Return the stripe of a line
+	 * @param hash hash of the line
+	 * @return stripe
+	 */
+	private Stripe stripeOf(int hash) {
+		return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+	}
+	
+	/**
+	 * Return the mapping of a line
+	 * @param buf line buffer
+	 * @param length length of the line
+	 * @param hash hash of the line, see {@link #hash(byte[], int)}
+	 * @return mapping, null if the line is not in the cache
+	 */
+	public SiteMapping get(byte[] buf, int length, int hash) {
+		Stripe stripe = stripeOf(hash);
+		synchronized (stripe) {
+			SiteMapping m = stripe.map.get(new Line(buf, length, hash));
+			if (m == null) {
+				stripe.misses++;
+			} else {
+				stripe.hits++;
+			}
+			return m;
+		}
+	}
+	
+	/**
+	 * Add the mapping of a line. The line is copied. 
+	 * The least recently used lines of its stripe are evicted until the stripe fits in its share of the capacity.
+	 * @param buf line buffer
+	 * @param length length of the line
+	 * @param hash hash of the line
+	 * @param m mapping of the line
+	 */
+	public void put(byte[] buf, int length, int hash, SiteMapping m) {
+		Line line = new Line(Arrays.copyOf(buf, length), length, hash);
+		Stripe stripe = stripeOf(hash);
+		synchronized (stripe) {
+			SiteMapping old = stripe.map.put(line, m);
+			if (old != null) { //parsed concurrently by another thread
+				stripe.size -= sizeOf(line, old);
+			}
+			stripe.size += sizeOf(line, m);
+			Iterator<Map.Entry<Line, SiteMapping>> eldest = stripe.map.entrySet().iterator();
+			while (stripe.size > stripe.capacity && eldest.hasNext()) {
+				Map.Entry<Line, SiteMapping> evicted = eldest.next();
+				stripe.size -= sizeOf(evicted.getKey(), evicted.getValue());
+				eldest.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Return the estimated size of an entry
+	 * @param line key of the entry
+	 * @param m mapping of the entry
+	 * @return size in bytes
+	 */
+	private static long sizeOf(Line line, SiteMapping m) {
+		return ENTRY_OVERHEAD + line.length + m.getSizeInBytes();
+	}
+	
+	/**
+	 * Return the number of lines found in the cache
+	 * @return hits
+	 */
+	public long getHits() {
+		long hits = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				hits += stripe.hits;
+			}
+		}
+		return hits;
+	}
+	
+	/**
+	 * Return the number of lines not found in the cache
+	 * @return misses
+	 */
+	public long getMisses() {
+		long misses = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				misses += stripe.misses;
+			}
+		}
+		return misses;
+	}
+	
+	/**
+	 * Part of the cache guarded by its own lock
+	 */
+	private static class Stripe {
+		/** Cached mappings, from the least to the most recently used */
+		private LinkedHashMap<Line, SiteMapping> map = new LinkedHashMap<Line, SiteMapping>(16, 0.75f, true);
+		/** Maximum estimated size of the stripe in bytes */
+		private long capacity;
+		/** Estimated size of the entries of the stripe in bytes */
+		private long size;
+		/** Number of lines found in the stripe */
+		private long hits;
+		/** Number of lines not found in the stripe */
+		private long misses;
+		
+		Stripe(long capacity) {
+			this.capacity = capacity;
+		}
+	}
+	
+	/**
+	 * Bytes of a line, compared by content
+	 */
+	private static class Line {
+		/** Buffer holding the line */
+		private byte[] buf;
+		/** Length of the line */
+		private int length;
+		/** Hash of the line */
+		private int hash;
+		
+		Line(byte[] buf, int length, int hash) {
+			this.buf = buf;
+			this.length = length;
+			this.hash = hash;
+		}
+		
+		public int hashCode() {
+			return hash;
+		}
+		
+		public boolean equals(Object o) {
+			if (!(o instanceof Line)) {
+				return false;
+			}
+			Line other = (Line) o;
+			if (hash != other.hash || length != other.length) {
+				return false;
+			}
+			for (int i = 0; i < length; i++) {
+				if (buf[i] != other.buf[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+	
+}
@@ -0,0 +1,303 @@
+package reporter;
+
+/**
+ * Options of a run that are not part of the six required arguments of Main.
+ * They are given to Main as extra arguments of the form --name=value.
+ * @author Hui-Jie Lee
+ *
+ */
+public class MappingOptions {
+	/** Number of threads used to process the site windows */
+	private int threads;
+	/** Split the work of each window across MCMC iterations instead of splitting the windows across threads */
+	private boolean parallelIterations;
+	/** Number of sites read and parsed ahead by background threads, 0 to read each site when it is needed */
+	private int prefetch;
+	/** Directory of the .map files, read from the filesystem. null to read them as resources */
+	private String inputDir;
+	/** Number of mapping lines per iteration in the .map files */
+	private int mappingsPerIteration;
+	/** Index of the mapping line that is kept in each iteration */
+	private int keptMapping;
+	/** Number of separator lines after the mapping lines of each iteration */
+	private int separatorLines;
+	/** Number of iterations discarded at the start of each file */
+	private int burnin;
+	/** One iteration out of thin is kept after the burn-in */
+	private int thin;
+	/** Directory of the binary site caches, null to parse the .map files */
+	private String cacheDir;
+	/** Bundle holding the .map files, null to read them one file per site */
+	private String bundle;
+	/** Maximum size of the cache of parsed mapping lines in megabytes, 0 without cache */
+	private int lineCache;
+	
+	/**
+	 * Constructor with default values: one thread, windows split across threads, no read-ahead,
+	 * .map files read as resources, with the record layout of PhyloBayes,
+	 * all iterations kept
+	 */
+	public MappingOptions() {
+		this.threads = 1;
+		this.parallelIterations = false;
+		this.prefetch = 0;
+		this.inputDir = null;
+		RecordLayout phylobayes = new RecordLayout();
+		this.mappingsPerIteration = phylobayes.getMappingsPerIteration();
+		this.keptMapping = phylobayes.getKeptMapping();
+		this.separatorLines = phylobayes.getSeparatorLines();
+		this.burnin = 0;
+		this.thin = 1;
+		this.cacheDir = null;
+		this.bundle = null;
+		this.lineCache = 0;
+	}
+	
+	/**
+	 * Parse the extra arguments of Main
+	 * @param args arguments of the form --name=value
+	 * @return options
+	 * @throws IllegalArgumentException if an argument is unknown or malformed
+	 */
+	public static MappingOptions parse(String[] args) {
+		MappingOptions options = new MappingOptions();
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			int eq = arg.indexOf('=');
+			if (!arg.startsWith("--") || eq < 0) {
+				throw new IllegalArgumentException("Unknown option: " + arg);
+			}
+			String key = arg.substring(2, eq);
+			String value = arg.substring(eq + 1);
+			if (key.equals("threads")) {
+				options.setThreads(Integer.parseInt(value));
+			} else if (key.equals("mappingsPerIteration")) {
+				options.setMappingsPerIteration(Integer.parseInt(value));
+			} else if (key.equals("keptMapping")) {
+				options.setKeptMapping(Integer.parseInt(value));
+			} else if (key.equals("separatorLines")) {
+				options.setSeparatorLines(Integer.parseInt(value));
+			} else if (key.equals("burnin")) {
+				options.setBurnin(Integer.parseInt(value));
+			} else if (key.equals("thin")) {
+				options.setThin(Integer.parseInt(value));
+			} else if (key.equals("cacheDir")) {
+				options.setCacheDir(value);
+			} else if (key.equals("bundle")) {
+				options.setBundle(value);
+			} else if (key.equals("lineCache")) {
+				options.setLineCache(Integer.parseInt(value));
+			} else if (key.equals("inputDir")) {
+				options.setInputDir(value);
+			} else if (key.equals("prefetch")) {
+				options.setPrefetch(Integer.parseInt(value));
+			} else if (key.equals("parallel")) {
+				if (value.equals("windows")) {
+					options.setParallelIterations(false);
+				} else if (value.equals("iterations")) {
+					options.setParallelIterations(true);
+				} else {
+					throw new IllegalArgumentException("Unknown value of --parallel (windows or iterations): " + value);
+				}
+			} else {
+				throw new IllegalArgumentException("Unknown option: " + arg);
+			}
+		}
+		//check the record layout
+		options.getLayout();
+		return options;
+	}
+	
+	/**
+	 * Return the number of threads
+	 * @return threads
+	 */
+	public int getThreads() {
+		return threads;
+	}
+	
+	/**
+	 * Set the number of threads. The windows are cut into chunks of 64 windows whatever the number of threads, 
+	 * and the statistics of the chunks are added along a fixed tree, so the output does not depend on it.
+	 * When the windows are split across threads, each chunk is processed by one thread, so only 
+	 * min(threads, number of chunks) threads are used unless the iterations are split across threads.
+	 * @param threads at least 1
+	 */
+	public void setThreads(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Number of threads must be at least 1: " + threads);
+		}
+		this.threads = threads;
+	}
+	
+	/**
+	 * Return true if the iterations of each window are split across threads
+	 * @return parallelIterations
+	 */
+	public boolean isParallelIterations() {
+		return parallelIterations;
+	}
+	
+	/**
+	 * Split the iterations of each window across threads (true), e.g. for few sites and a large C, 
+	 * or split the windows across threads (false)
+	 * @param parallelIterations
+	 */
+	public void setParallelIterations(boolean parallelIterations) {
+		this.parallelIterations = parallelIterations;
+	}
+	
+	/**
+	 * Return the number of sites read and parsed ahead
+	 * @return prefetch, 0 without read-ahead
+	 */
+	public int getPrefetch() {
+		return prefetch;
+	}
+	
+	/**
+	 * Set the number of sites read and parsed ahead by background threads
+	 * @param prefetch 0 to read each site when it is needed
+	 */
+	public void setPrefetch(int prefetch) {
+		if (prefetch < 0) {
+			throw new IllegalArgumentException("Number of sites read ahead must not be negative: " + prefetch);
+		}
+		this.prefetch = prefetch;
+	}
+	
+	/**
+	 * Return the directory of the .map files
+	 * @return inputDir, null if they are read as resources
+	 */
+	public String getInputDir() {
+		return inputDir;
+	}
+	
+	/**
+	 * Set the directory of the .map files. The files are then read from the filesystem, and memory-mapped if they are large.
+	 * @param inputDir null to read them as resources through the class loader
+	 */
+	public void setInputDir(String inputDir) {
+		this.inputDir = inputDir;
+	}
+	
+	/**
+	 * Return the record layout of the .map files
+	 * @return layout
+	 * @throws IllegalArgumentException if the layout is not valid
+	 */
+	public RecordLayout getLayout() {
+		return new RecordLayout(mappingsPerIteration, keptMapping, separatorLines);
+	}
+	
+	/**
+	 * Set the number of mapping lines per iteration in the .map files
+	 * @param mappingsPerIteration 1 if PhyloBayes has been changed to write one mapping per iteration
+	 */
+	public void setMappingsPerIteration(int mappingsPerIteration) {
+		this.mappingsPerIteration = mappingsPerIteration;
+	}
+	
+	/**
+	 * Set the index of the mapping line that is kept in each iteration
+	 * @param keptMapping
+	 */
+	public void setKeptMapping(int keptMapping) {
+		this.keptMapping = keptMapping;
+	}
+	
+	/**
+	 * Set the number of separator lines after the mapping lines of each iteration
+	 * @param separatorLines
+	 */
+	public void setSeparatorLines(int separatorLines) {
+		this.separatorLines = separatorLines;
+	}
+	
+	/**
+	 * Return the number of iterations discarded at the start of each file
+	 * @return burnin
+	 */
+	public int getBurnin() {
+		return burnin;
+	}
+	
+	/**
+	 * Set the number of iterations discarded at the start of each file. They are skipped without being parsed.
+	 * At least one iteration must remain, i.e. burnin must be smaller than the number of iterations C.
+	 * @param burnin from 0 to C-1
+	 */
+	public void setBurnin(int burnin) {
+		this.burnin = burnin;
+	}
+	
+	/**
+	 * Return the thinning: one iteration out of thin is kept after the burn-in
+	 * @return thin
+	 */
+	public int getThin() {
+		return thin;
+	}
+	
+	/**
+	 * Set the thinning: one iteration out of thin is kept after the burn-in, starting with the first one
+	 * @param thin 1 to keep all iterations
+	 */
+	public void setThin(int thin) {
+		this.thin = thin;
+	}
+	
+	/**
+	 * Return the directory of the binary site caches
+	 * @return cacheDir, null if the .map files are parsed
+	 */
+	public String getCacheDir() {
+		return cacheDir;
+	}
+	
+	/**
+	 * Load the parsed mappings from the binary site caches written by {@link SiteCacheConverter}
+	 * @param cacheDir null to parse the .map files
+	 */
+	public void setCacheDir(String cacheDir) {
+		this.cacheDir = cacheDir;
+	}
+	
+	/**
+	 * Return the bundle holding the .map files
+	 * @return bundle filename, null if they are read one file per site
+	 */
+	public String getBundle() {
+		return bundle;
+	}
+	
+	/**
+	 * Read the .map files from a bundle written by {@link MapBundlePacker}
+	 * @param bundle bundle filename, null to read them one file per site
+	 */
+	public void setBundle(String bundle) {
+		this.bundle = bundle;
+	}
+	
+	/**
+	 * Return the maximum size of the cache of parsed mapping lines
+	 * @return lineCache in megabytes, 0 without cache
+	 */
+	public int getLineCache() {
+		return lineCache;
+	}
+	
+	/**
+	 * Set the maximum size of the cache of parsed mapping lines ({@link MappingCache}), as estimated by the cache.
+	 * Repeated lines, e.g. of sites without substitution, are then parsed once.
+	 * @param lineCache in megabytes, 0 to parse every line
+	 */
+	public void setLineCache(int lineCache) {
+		if (lineCache < 0) {
+			throw new IllegalArgumentException("Size of the line cache must not be negative: " + lineCache);
+		}
+		this.lineCache = lineCache;
+	}
+	
+}
@@ -1,11 +1,13 @@
 package reporter;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * This class reads control files and multiple .map files, store # of each type of
@@ -17,11 +19,14 @@ import java.io.StringReader;
  */
 public class MappingParser {
 	
+	/** Number of windows in a chunk. Fixed so that the reduction does not depend on the number of threads */
+	private static final int CHUNK_WINDOWS = 64;
+	
 	/** Start index */
 	private int start;
 	/** End index*/
 	private int end;
-	/** Number of iterations / trees in a file*/
+	/** Number of iterations kept from each file (all C trees without burn-in and thinning) */
 	private int C;
 	/** Filename prefix */
 	private String name;
@@ -39,12 +44,18 @@ public class MappingParser {
 	private Tree tree[];
 	/** Store the filename of the outgroup */
 	private String outgroupFileName;
+	/** Parser session for the run: the outgroup file is read once */
+	private TreeParser parser;
 	/** The number of types of changes. 12 for SingleSiteParser, 4 for TripletParser */
 	private int numTypeChanges;
 	/** The number of types of states. 4 for SingleSiteParser, 3 for TripletParser */
 	private int numTypeStates;
 	/** Store the root state count for each mapping */
 	private int[][] rootStateCount;
+	/** Options of the run */
+	private MappingOptions options;
+	/** Opens the .map files, with their record layout */
+	private MapInput input;
 	
 	/**
 	 * Constructor
@@ -55,19 +66,46 @@ public class MappingParser {
 	 * @param outgroupFileName
 	 */
 	public MappingParser(int start, int end, int C, String name, String outgroupFileName) {
+		this(start, end, C, name, outgroupFileName, new MappingOptions());
+	}
+	
+	/**
+	 * Constructor
+	 * @param start
+	 * @param end
+	 * @param C
+	 * @param name
+	 * @param outgroupFileName
+	 * @param options options of the run, e.g. the number of threads
+	 */
+	public MappingParser(int start, int end, int C, String name, String outgroupFileName, MappingOptions options) {
+		this.options = options;
+		IterationFilter filter = new IterationFilter(C, options.getBurnin(), options.getThin());
+		this.input = new MapInput(options.getInputDir(), options.getLayout(), filter);
+		this.input.setCacheDir(options.getCacheDir());
+		if (options.getBundle() != null) {
+			try {
+				//mapped once for the whole run
+				this.input.setBundle(new MapBundle(new File(options.getBundle())));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
 		this.start = start;
 		this.end = end;
-		this.C = C;
+		this.C = filter.getNumKept();
 		this.name = name;
 		this.outgroupFileName = outgroupFileName;
 		this.numTypeChanges = 18;
 		this.numTypeStates = 6;
 		this.tree = new Tree[3];
-		this.rootStateCount = new int[4][C]; //G,C,T,A
+		this.rootStateCount = new int[4][this.C]; //G,C,T,A
 		
 		System.out.println(new File("").getPath().toString());
 		
 		String inputMap = name+"_"+start+".map";
+		//one parser session for the whole run, the outgroup file is read here only
+		this.parser = new TreeParser(outgroupFileName);
 
 		try {
 			// returns the ClassLoader object associated with this Class
@@ -75,30 +113,47 @@ public class MappingParser {
 	        // input stream
 			//InputStream inStream = cLoader.getResourceAsStream("./parse_phylobayes/"+inputMap);
 			//InputStream inStream = MappingParser.class.getClassLoader().getResourceAsStream(inputMap);
-			InputStream inStream = this.getClass().getResourceAsStream(new File("../" + inputMap).getPath().toString());
-			BufferedReader r = new BufferedReader(new InputStreamReader(inStream));
-			//need to figure out the number of branches first so that 
-			//i can declare the size of the array to store info
-			String line = r.readLine();
-			StringReader str = new StringReader(line);
-            TreeParser tp = new TreeParser(str, outgroupFileName);
-            //store the tree structure here
-            //note that this tree shares the same node/branch numbering and ancestral with all other trees
-            this.tree[0] = tp.tokenize();
+			if (input.getCacheDir() != null) {
+				//the binary cache keeps the first mapping line of the .map file
+				byte[] line = input.openCache(name, start).getFirstLine();
+				this.tree[0] = parser.tokenizeTemplate(line, line.length).getTree();
+			} else {
+				LineSource r = input.open(name, start);
+				//need to figure out the number of branches first so that 
+				//i can declare the size of the array to store info
+				int length = input.getLayout().readMapping(r, inputMap);
+	            //store the tree structure here
+	            //note that this tree shares the same node/branch numbering and ancestral with all other trees
+	            //its numbering and outgroup removal are frozen in the topology template of the parser
+	            this.tree[0] = parser.tokenizeTemplate(r.getBuffer(), length).getTree();
+	            r.close();
+			}
             this.branchNum = tree[0].getNumBranches();
-            r.close();
-            inStream.close();
 		} catch (IOException e) {
             e.printStackTrace();
         } 
 		
+		if (options.getLineCache() > 0) {
+			parser.setCache(new MappingCache((long) options.getLineCache() << 20));
+		}
 		try {
 			setUp();
+			if (parser.getCache() != null) {
+				System.out.println("Line cache: hits="+parser.getCache().getHits()+", misses="+parser.getCache().getMisses());
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 	
+	/**
+	 * Get number of iterations kept from each file, i.e. the width of the statistics
+	 * @return C after burn-in and thinning
+	 */
+	public int getNumIterations() {
+		return C;
+	}
+	
 	/**
 	 * Get number of branches
      * @return branchNum
@@ -108,87 +163,191 @@ public class MappingParser {
 	}
 	
 	/**
-	 * Get number of changes and time in states for each mapping
+	 * Get number of changes and time in states for each mapping.
+	 * The windows are split into chunks of {@link #CHUNK_WINDOWS} consecutive windows, whatever the number 
+	 * of threads. Each chunk is processed with its own parser session, site window and accumulator, 
+	 * by the calling thread or by a pool of threads.
+	 * With {@link MappingOptions#isParallelIterations()}, the chunks are processed in order by the calling 
+	 * thread and the pool parses the iterations of each site and merges the iterations of each window instead.
+	 * The accumulators of the chunks are added in order along a fixed pairwise tree ({@link StatisticsReducer}), 
+	 * so the output is the same for one thread, any number of threads and both ways of splitting the work.
+	 * At most 2 x threads chunks are computed ahead of the one being added, so the number of accumulators 
+	 * alive is bounded by 2 x threads + log2(# of chunks).
 	 * 
 	 * @throws IOException 
 	 *             
 	 */
 	public void setUp() throws IOException {
-		numberOfChanges = new int[branchNum][numTypeChanges][C];
-		//changesInGroups = new int[numGroup][branchNum][C]; 
-		timeStates = new double[branchNum][numTypeStates][C];
-		br = new double[branchNum][C];
-		propStates = new double[branchNum][numTypeStates][C];
-		
-		String inputMap = null;
-		//File f = null;
 		//move window from site 1 (index 0) to site N-2 (index N-3)
-		for (int i = start; i < (end-1); i++) {		
-			System.out.println("i="+i);
-			String[] line = new String[3];
-			StringReader[] str = new StringReader[3];
-			BufferedReader[] r = new BufferedReader[3];
-			InputStream[] inStream = new InputStream[3];
-			for (int j = i; j < (i+3); j++) { //construct 3 bufferedreader
-				inputMap = name+"_"+j+".map";
-				//f = new File(inputMap);
-				//r[j-i] = new BufferedReader(new FileReader(f));
-				//inStream[j-i] = MappingParser.class.getClassLoader().getResourceAsStream(inputMap);
-				inStream[j-i] = this.getClass().getResourceAsStream(new File("../" + inputMap).getPath().toString());					
-				r[j-i] = new BufferedReader(new InputStreamReader(inStream[j-i]));
+		int numWindows = Math.max(0, (end-1) - start);
+		int numChunks = (numWindows + CHUNK_WINDOWS - 1) / CHUNK_WINDOWS;
+		int threads = options.getThreads();
+		StatisticsReducer reducer = new StatisticsReducer();
+		if (threads == 1 || options.isParallelIterations()) {
+			//the chunks are processed in order by the calling thread, and the pool works inside each window
+			ExecutorService pool = (threads > 1) ? Executors.newFixedThreadPool(threads) : null;
+			try {
+				for (int c = 0; c < numChunks; c++) {
+					reducer.add(c, processWindows(parser, chunkStart(c), chunkStart(c+1), pool));
+					reportProgress(c);
+				}
+			} finally {
+				if (pool != null) pool.shutdownNow();
 			}
+		} else {
+			//a chunk is processed by one thread, so short runs use fewer threads
+			int workers = Math.max(1, Math.min(threads, numChunks));
+			ExecutorService pool = Executors.newFixedThreadPool(workers);
+			try {
+				ArrayDeque<Future<StatisticsAccumulator>> pending = new ArrayDeque<Future<StatisticsAccumulator>>();
+				int next = 0;
+				for (int c = 0; c < numChunks; c++) {
+					while (next < numChunks && pending.size() < 2 * workers) {
+						final int from = chunkStart(next);
+						final int to = chunkStart(next+1);
+						final TreeParser session = new TreeParser(parser);
+						pending.add(pool.submit(new Callable<StatisticsAccumulator>() {
+							public StatisticsAccumulator call() throws IOException {
+								return processWindows(session, from, to, null);
+							}
+						}));
+						next++;
+					}
+					reducer.add(c, waitFor(pending.poll()));
+					reportProgress(c);
+				}
+			} finally {
+				pool.shutdownNow();
+			}
+		}
+		StatisticsAccumulator stats = reducer.result();
+		if (stats == null) {
+			stats = new StatisticsAccumulator(branchNum, C);
+		}
+		
+		numberOfChanges = stats.getNumberOfChanges();
+		timeStates = stats.getTimeStates();
+		propStates = stats.getPropStates();
+		br = stats.getBranchLengths();
+		rootStateCount = stats.getRootStateCount();
+	}
+	
+	/**
+	 * Return the first window of a chunk
+	 * @param chunk index of the chunk
+	 * @return index of the first window, end-1 after the last chunk
+	 */
+	private int chunkStart(int chunk) {
+		return (int) Math.min((long) start + (long) chunk * CHUNK_WINDOWS, end-1);
+	}
+	
+	/**
+	 * Print the windows of a chunk once it has been added, from the calling thread only
+	 * @param chunk index of the chunk
+	 */
+	private void reportProgress(int chunk) {
+		System.out.println("i="+chunkStart(chunk)+".."+(chunkStart(chunk+1)-1));
+	}
+	
+	/**
+	 * Process the windows starting at sites from ... to-1 into a new accumulator
+	 * @param session parser session used by the calling thread only
+	 * @param from index of the first window
+	 * @param to index after the last window
+	 * @param pool pool used to split the iterations of each window, null to process them in the calling thread
+	 * @return statistics of the windows
+	 * @throws IOException
+	 */
+	private StatisticsAccumulator processWindows(TreeParser session, int from, int to, ExecutorService pool) throws IOException {
+		//paths are merged straight into the statistics, no per-window TripletParser is built
+		StatisticsAccumulator stats = new StatisticsAccumulator(branchNum, C);
+		TripletMerger merger = new TripletMerger();
+		int threads = options.getThreads();
+		
+		//each site is parsed once and kept in the window until it slides out
+		SiteWindow window = (pool == null) ? new SiteWindow(input, name, session) : new SiteWindow(input, name, session, pool, threads);
+		if (options.getPrefetch() > 0 && from < to) {
+			//windows from ... to-1 need sites from ... to+1
+			window.startReadAhead(from, to+2, options.getPrefetch());
+		}
+		ArrayDeque<Future<Object>> blocks = new ArrayDeque<Future<Object>>();
+		try {
+			for (int i = from; i < to; i++) {		
+				window.moveTo(i);
 				
-			for (int j = 0; j < C; j++) { //read C trees for each file 
-				try {
-					for (int k = 0; k < 3; k++) { //repeat for each file (total 3 files at a time)
-						//read first tree
-						line[k] = r[k].readLine();
-						str[k] = new StringReader(line[k]);
-		                TreeParser tp = new TreeParser(str[k], outgroupFileName);
-		                tree[k] = tp.tokenize();
-		                //read second tree, discard this tree
-                        //REMOVE THIS LINE IF PHYLOBAYES HAS BEEN CHANGED TO INCLUDE ONLY ONE MAPPING PER MCMC ITERATION
-		                line[k] = r[k].readLine();
-		                //read "" and discard it.
-		                line[k] = r[k].readLine();
+				if (pool == null) {
+					mergeIterations(window, 0, C, merger, stats);
+				} else {
+					//each block of iterations owns its columns of the accumulator
+					for (int t = 0; t < threads; t++) {
+						final SiteWindow w = window;
+						final int first = (int) ((long) C * t / threads);
+						final int last = (int) ((long) C * (t+1) / threads);
+						final StatisticsAccumulator view = stats.newView();
+						blocks.add(pool.submit(new Callable<Object>() {
+							public Object call() {
+								mergeIterations(w, first, last, new TripletMerger(), view);
+								return null;
+							}
+						}));
 					}
-					SiteParser parse = new TripletParser(tree);
-						
-					for (int l = 0; l < branchNum; l++) {
-						//br = new double[branchNum][C];
-		               	br[l][j] = parse.getBranchLengths()[l]; 
-		               	for (int k = 0; k < numTypeStates; k++) {
-		               		//numberOfChanges = new int[4][trees[0].getNumBranches()];
-		               		numberOfChanges[l][k][j] += parse.getNumberOfChanges()[l][k];
-		               		//timeOfStates = new double[3][trees[0].getNumBranches()];
-		               		timeStates[l][k][j] += parse.getTimeOfStates()[l][k];
-		               		//propStates = new double[3][trees[0].getNumBranches()];
-		               		propStates[l][k][j] += parse.getPropStates()[l][k];
-		                }//end k
-		                for (int k = numTypeStates; k < numTypeChanges; k++) {
-		                	numberOfChanges[l][k][j]+=parse.getNumberOfChanges()[l][k];
-		                }//end k
-
-		             }//end l	
-					
-					//increase root state count
-					rootStateCount[parse.getRootState()][j]++;
-						
-				} catch (IOException e) {
-					  // TODO Auto-generated catch block
-					  e.printStackTrace();
-				} 
-					
-			}//end j
+					while (!blocks.isEmpty()) {
+						SiteWindow.waitFor(blocks.poll());
+					}
+				}
 				
-			//close bufferedreader
-			for (int k = 0; k < 3; k++) {
-				r[k].close();
-				inStream[k].close();
+			} //end i
+		} finally {
+			for (Future<Object> f : blocks) {
+				f.cancel(true);
 			}
+			window.close();
+		}
+		return stats;
+	}
+	
+	/**
+	 * Merge the iterations first ... last-1 of the current window into an accumulator
+	 * @param window
+	 * @param first first iteration
+	 * @param last iteration after the last one
+	 * @param merger merger used by the calling thread only
+	 * @param stats accumulator (or view) used by the calling thread only
+	 */
+	private static void mergeIterations(SiteWindow window, int first, int last, TripletMerger merger, StatisticsAccumulator stats) {
+		for (int j = first; j < last; j++) { //C triplets of trees for each window
+			SiteMapping[] sites = window.getMappings(j);
+			stats.setIteration(j);
+			merger.merge(sites, stats);
+			//increase root state count by the state of the second position
+			stats.addRootState(sites[1].getRootState());
 				
-		} //end i
-			
+		}//end j
+	}
+	
+	/**
+	 * Wait for the result of a thread, rethrowing its IOException
+	 * @param result
+	 * @return statistics computed by the thread
+	 * @throws IOException
+	 */
+	private static StatisticsAccumulator waitFor(Future<StatisticsAccumulator> result) throws IOException {
+		try {
+			return result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the site windows");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		}
 	}
 	
 	
@@ -240,11 +399,11 @@ public class MappingParser {
 	}
 	
 	/**
-	 * Return the tree 
+	 * Return the tree. All trees share the topology and numbering of the first tree.
 	 * @return tree
 	 */
 	public Tree getTree(){
-		return tree[1];
+		return tree[0];
 	}	
 	
 	public int[][] getRootStateCount() {
@@ -0,0 +1,260 @@
+package reporter;
+
+import java.nio.charset.Charset;
+
+/**
+ * Hand-written scanner for PhyloBayes mapping lines (newick trees with states and event times).
+ * It replaces java.io.StreamTokenizer in TreeParser. The scanner works directly on an ASCII byte buffer
+ * that can be reused for successive lines: no String is created for numbers, and states
+ * (single characters) are returned as shared constant Strings.
+ * Numbers such as `5e-05' are read as one token and converted exactly.
+ *
+ * Character classes are the same as the ones TreeParser used to set on the StreamTokenizer:
+ * bytes up to ' ' are white space, '"' delimits a quoted word, and ( ) , : ; _ are returned as
+ * ordinary characters.
+ * @author Hui-Jie Lee
+ *
+ */
+public class MappingScanner {
+	/** Token type: end of the buffer */
+	public static final int TT_EOF = -1;
+	/** Token type: a word (name or state) */
+	public static final int TT_WORD = -3;
+	/** Token type: a number */
+	public static final int TT_NUMBER = -2;
+
+	/** Words and numbers are plain ASCII */
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	/** Largest integer such that all integers up to it are exactly representable as double: 2^53 */
+	private static final long MAX_EXACT = 1L << 53;
+	/** Powers of ten that are exactly representable as double */
+	private static final double[] POW10 = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+	/** Shared one-character Strings, so that states do not allocate */
+	private static final String[] SINGLE = new String[128];
+	/** Word constituents (besides letters and digits), as set on the StreamTokenizer before */
+	private static final boolean[] WORD = new boolean[256];
+	static {
+		for (int c = 0; c < 128; c++) {
+			SINGLE[c] = String.valueOf((char) c);
+		}
+		for (int c = 'a'; c <= 'z'; c++) WORD[c] = true;
+		for (int c = 'A'; c <= 'Z'; c++) WORD[c] = true;
+		for (int c = '0'; c <= '9'; c++) WORD[c] = true;
+		for (int c = 128 + 32; c < 256; c++) WORD[c] = true;
+		String others = "'!#$%&*+-./<>?@^`{|}~";
+		for (int i = 0; i < others.length(); i++) {
+			WORD[others.charAt(i)] = true;
+		}
+	}
+
+	/** Buffer being scanned */
+	private byte[] buf;
+	/** Current position in the buffer */
+	private int pos;
+	/** End of the data in the buffer */
+	private int limit;
+
+	/** Type of the current token: TT_WORD, TT_NUMBER, TT_EOF or the character itself */
+	private int ttype;
+	/** Start of the current word in the buffer */
+	private int wordStart;
+	/** Length of the current word */
+	private int wordLength;
+	/** Value of the current number */
+	private double nval;
+	/** Return the current token again on the next call of nextToken() */
+	private boolean pushedBack;
+
+	/**
+	 * Constructor. Use reset() to set the data to be scanned.
+	 */
+	public MappingScanner() {
+		this.buf = new byte[0];
+	}
+
+	/**
+	 * Point the scanner to a new region of a buffer.
+	 * The buffer is not copied and must not be changed while it is scanned.
+	 * @param buf buffer holding ASCII text
+	 * @param offset start of the text
+	 * @param length length of the text
+	 */
+	public void reset(byte[] buf, int offset, int length) {
+		this.buf = buf;
+		this.pos = offset;
+		this.limit = offset + length;
+		this.pushedBack = false;
+		this.ttype = TT_EOF;
+	}
+
+	/**
+	 * Read the next token
+	 * @return type of the token
+	 */
+	public int nextToken() {
+		if (pushedBack) {
+			pushedBack = false;
+			return ttype;
+		}
+		while (pos < limit && (buf[pos] & 0xff) <= ' ') { //skip white space
+			pos++;
+		}
+		if (pos >= limit) {
+			return ttype = TT_EOF;
+		}
+		int c = buf[pos] & 0xff;
+		if ((c >= '0' && c <= '9') || c == '.' || (c == '-' && pos+1 < limit && isNumberStart(buf[pos+1] & 0xff))) {
+			return ttype = scanNumber();
+		}
+		if (c == '"') { //quoted word
+			int start = ++pos;
+			while (pos < limit && buf[pos] != '"') {
+				pos++;
+			}
+			wordStart = start;
+			wordLength = pos - start;
+			if (pos < limit) pos++; //closing quote
+			return ttype = TT_WORD;
+		}
+		if (WORD[c]) {
+			int start = pos;
+			while (pos < limit && WORD[buf[pos] & 0xff]) {
+				pos++;
+			}
+			wordStart = start;
+			wordLength = pos - start;
+			return ttype = TT_WORD;
+		}
+		pos++;
+		return ttype = c;
+	}
+
+	/**
+	 * Return the current token again on the next call of nextToken()
+	 */
+	public void pushBack() {
+		pushedBack = true;
+	}
+
+	/**
+	 * Return the current word as a String.
+	 * Single-character words (states) are shared constants and do not allocate.
+	 * @return word
+	 */
+	public String word() {
+		if (wordLength == 1 && buf[wordStart] >= 0) {
+			return SINGLE[buf[wordStart]];
+		}
+		return new String(buf, wordStart, wordLength, ASCII);
+	}
+
+	/**
+	 * Return the first character of the current word, e.g. a state
+	 * @return character as a byte
+	 */
+	public byte wordByte() {
+		return buf[wordStart];
+	}
+
+	/**
+	 * Compare the current word with a String without creating a String
+	 * @param s
+	 * @return true if the word is equal to s
+	 */
+	public boolean wordEquals(String s) {
+		if (s.length() != wordLength) return false;
+		for (int i = 0; i < wordLength; i++) {
+			if (s.charAt(i) != (char) (buf[wordStart+i] & 0xff)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Return the id of the current word in a taxon table, without creating a String if the name is known
+	 * @param taxa taxon table
+	 * @return id
+	 */
+	public int wordId(TaxonTable taxa) {
+		return taxa.id(buf, wordStart, wordLength);
+	}
+
+	/**
+	 * Return the value of the current number
+	 * @return number
+	 */
+	public double number() {
+		return nval;
+	}
+
+	private static boolean isNumberStart(int c) {
+		return (c >= '0' && c <= '9') || c == '.';
+	}
+
+	/**
+	 * Scan a number of the form [-]digits[.digits][(e|E)[+|-]digits] starting at pos.
+	 * The decimal significand is accumulated in a long. If it fits in 53 bits and the
+	 * decimal exponent is at most 22, a single multiplication or division by an exact power of ten
+	 * gives the correctly rounded value. Otherwise Double.parseDouble is used.
+	 * @return TT_NUMBER
+	 */
+	private int scanNumber() {
+		int start = pos;
+		boolean negative = false;
+		if (buf[pos] == '-') {
+			negative = true;
+			pos++;
+		}
+		long mantissa = 0;
+		int exponent = 0;
+		boolean exact = true;
+		boolean point = false;
+		while (pos < limit) {
+			int c = buf[pos];
+			if (c >= '0' && c <= '9') {
+				if (mantissa < MAX_EXACT / 10) {
+					mantissa = mantissa * 10 + (c - '0');
+					if (point) exponent--;
+				} else {
+					exact = false;
+					if (!point) exponent++;
+				}
+			} else if (c == '.' && !point) {
+				point = true;
+			} else {
+				break;
+			}
+			pos++;
+		}
+		if (pos < limit && (buf[pos] == 'e' || buf[pos] == 'E')) {
+			int save = pos;
+			pos++;
+			boolean negativeExp = false;
+			if (pos < limit && (buf[pos] == '-' || buf[pos] == '+')) {
+				negativeExp = buf[pos] == '-';
+				pos++;
+			}
+			if (pos < limit && buf[pos] >= '0' && buf[pos] <= '9') {
+				int e = 0;
+				while (pos < limit && buf[pos] >= '0' && buf[pos] <= '9') {
+					if (e < 10000) e = e * 10 + (buf[pos] - '0');
+					pos++;
+				}
+				exponent += negativeExp ? -e : e;
+			} else { //not an exponent
+				pos = save;
+			}
+		}
+		if (exact && mantissa <= MAX_EXACT && exponent >= -22 && exponent <= 22) {
+			double v = (double) mantissa;
+			v = (exponent < 0) ? v / POW10[-exponent] : v * POW10[exponent];
+			nval = negative ? -v : v;
+		} else {
+			nval = Double.parseDouble(new String(buf, start, pos - start, ASCII));
+		}
+		return TT_NUMBER;
+	}
+
+}
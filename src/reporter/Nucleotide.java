@@ -0,0 +1,120 @@
+package reporter;
+
+/**
+ * Integer codes of the nucleotide states, in the same order as the root state count: G, C, T, A.
+ * A triplet (three consecutive sites) is encoded in 6 bits, two bits per site,
+ * with the first site in the highest bits: code = (s0 << 4) | (s1 << 2) | s2.
+ * @author Hui-Jie Lee
+ *
+ */
+public final class Nucleotide {
+	public static final int G = 0;
+	public static final int C = 1;
+	public static final int T = 2;
+	public static final int A = 3;
+
+	/** Number of triplet codes, 4^3 */
+	public static final int NUM_TRIPLETS = 64;
+
+	/** Letters of the codes */
+	private static final char[] LETTER = {'G', 'C', 'T', 'A'};
+	/** Letters of the codes as strings, shared by all nodes */
+	private static final String[] NAME = {"G", "C", "T", "A"};
+	/** Code of each ASCII character, -1 if it is not a nucleotide */
+	private static final byte[] CODE = new byte[256];
+	static {
+		for (int c = 0; c < 256; c++) {
+			CODE[c] = -1;
+		}
+		for (int k = 0; k < 4; k++) {
+			CODE[LETTER[k]] = (byte) k;
+		}
+	}
+
+	private Nucleotide() {
+	}
+
+	/**
+	 * Return the code of a nucleotide
+	 * @param c ASCII character G, C, T or A
+	 * @return code
+	 */
+	public static int code(int c) {
+		int k = CODE[c & 0xff];
+		if (k < 0) {
+			throw new IllegalArgumentException("Unknown nucleotide state: " + (char) (c & 0xff));
+		}
+		return k;
+	}
+
+	/**
+	 * Return the letter of a code
+	 * @param code
+	 * @return G, C, T or A
+	 */
+	public static char letter(int code) {
+		return LETTER[code];
+	}
+
+	/**
+	 * Return the letter of a code as a string
+	 * @param code
+	 * @return "G", "C", "T" or "A", always the same instance for a code
+	 */
+	public static String name(int code) {
+		return NAME[code];
+	}
+
+	/**
+	 * Encode a triplet
+	 * @param s0 code of the first site
+	 * @param s1 code of the second site
+	 * @param s2 code of the third site
+	 * @return triplet code
+	 */
+	public static int triplet(int s0, int s1, int s2) {
+		return (s0 << 4) | (s1 << 2) | s2;
+	}
+
+	/**
+	 * Return the code of one site of a triplet
+	 * @param triplet triplet code
+	 * @param position 0, 1 or 2
+	 * @return code of the site
+	 */
+	public static int site(int triplet, int position) {
+		return (triplet >> (2 * (2 - position))) & 3;
+	}
+
+	/**
+	 * Replace one site of a triplet
+	 * @param triplet triplet code
+	 * @param position 0, 1 or 2
+	 * @param code new code of the site
+	 * @return new triplet code
+	 */
+	public static int replace(int triplet, int position, int code) {
+		int shift = 2 * (2 - position);
+		return (triplet & ~(3 << shift)) | (code << shift);
+	}
+
+	/**
+	 * Check whether the second site of a triplet is in a CpG context, i.e. the triplet contains "CG"
+	 * @param triplet triplet code
+	 * @return true if the second site is a CpG site
+	 */
+	public static boolean isCpG(int triplet) {
+		int s0 = site(triplet, 0), s1 = site(triplet, 1), s2 = site(triplet, 2);
+		return (s0 == C && s1 == G) || (s1 == C && s2 == G);
+	}
+
+	/**
+	 * Return the letters of a triplet
+	 * @param triplet triplet code
+	 * @return e.g. "ACG"
+	 */
+	public static String toString(int triplet) {
+		return new String(new char[] {letter(site(triplet, 0)), letter(site(triplet, 1)), letter(site(triplet, 2))});
+	}
+
+}
@@ -0,0 +1,119 @@
+package reporter;
+
+import java.io.IOException;
+
+/**
+ * Layout of the records of a .map file. Each MCMC iteration is one record made of a number of mapping lines,
+ * one of which is kept, followed by a number of separator lines.
+ * PhyloBayes writes two mappings per iteration and an empty line, and the first mapping is kept.
+ * Lines that are not kept are skipped with {@link LineSource#skipLine()}, without being copied.
+ * @author Hui-Jie Lee
+ *
+ */
+public class RecordLayout {
+	/** Number of mapping lines per iteration */
+	private int mappingsPerIteration;
+	/** Index of the mapping line that is kept */
+	private int keptMapping;
+	/** Number of separator lines after the mapping lines */
+	private int separatorLines;
+	
+	/**
+	 * Constructor with the layout of PhyloBayes: two mappings, the first is kept, and an empty line
+	 */
+	public RecordLayout() {
+		this(2, 0, 1);
+	}
+	
+	/**
+	 * Constructor
+	 * @param mappingsPerIteration number of mapping lines per iteration
+	 * @param keptMapping index of the mapping line that is kept, 0 ... mappingsPerIteration-1
+	 * @param separatorLines number of separator lines after the mapping lines
+	 */
+	public RecordLayout(int mappingsPerIteration, int keptMapping, int separatorLines) {
+		if (mappingsPerIteration < 1 || keptMapping < 0 || keptMapping >= mappingsPerIteration || separatorLines < 0) {
+			throw new IllegalArgumentException("Invalid record layout: " + mappingsPerIteration + " mappings per iteration, keep mapping " 
+					+ keptMapping + ", " + separatorLines + " separator lines");
+		}
+		this.mappingsPerIteration = mappingsPerIteration;
+		this.keptMapping = keptMapping;
+		this.separatorLines = separatorLines;
+	}
+	
+	/**
+	 * Return the line number of the kept mapping of a record, e.g. for error messages
+	 * @param record index of the record in the file
+	 * @return line number, starting at 1
+	 */
+	public long getLineNumber(int record) {
+		return (long) record * (mappingsPerIteration + separatorLines) + keptMapping + 1;
+	}
+	
+	/**
+	 * Read the record of the next iteration. The kept mapping line is left in the buffer of the reader.
+	 * @param r reader of the .map file
+	 * @param inputMap name of the file, for the error message
+	 * @return length of the kept mapping line
+	 * @throws IOException if the file ends before the kept mapping line
+	 */
+	public int readMapping(LineSource r, String inputMap) throws IOException {
+		for (int m = 0; m < keptMapping; m++) {
+			r.skipLine();
+		}
+		int length = r.readLine();
+		if (length < 0) {
+			throw new IOException("Unexpected end of file " + inputMap);
+		}
+		//the lines after the kept mapping do not overwrite the buffer
+		for (int m = keptMapping+1; m < mappingsPerIteration; m++) {
+			r.skipLine();
+		}
+		for (int m = 0; m < separatorLines; m++) {
+			r.skipLine();
+		}
+		return length;
+	}
+	
+	/**
+	 * Skip the record of the next iteration, e.g. an iteration of the burn-in, without copying any line.
+	 * @param r reader of the .map file
+	 * @param inputMap name of the file, for the error message
+	 * @throws IOException if the file ends before the mapping lines
+	 */
+	public void skipRecord(LineSource r, String inputMap) throws IOException {
+		for (int m = 0; m < mappingsPerIteration; m++) {
+			if (!r.skipLine() && m <= keptMapping) {
+				throw new IOException("Unexpected end of file " + inputMap);
+			}
+		}
+		for (int m = 0; m < separatorLines; m++) {
+			r.skipLine();
+		}
+	}
+	
+	/**
+	 * Return the number of mapping lines per iteration
+	 * @return mappingsPerIteration
+	 */
+	public int getMappingsPerIteration() {
+		return mappingsPerIteration;
+	}
+	
+	/**
+	 * Return the index of the mapping line that is kept
+	 * @return keptMapping
+	 */
+	public int getKeptMapping() {
+		return keptMapping;
+	}
+	
+	/**
+	 * Return the number of separator lines after the mapping lines
+	 * @return separatorLines
+	 */
+	public int getSeparatorLines() {
+		return separatorLines;
+	}
+	
+}
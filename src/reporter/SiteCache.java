@@ -0,0 +1,326 @@
+package reporter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Binary cache of the parsed mappings of one site, written once by {@link SiteCacheConverter} 
+ * and loaded instead of parsing the .map file on later runs.
+ * 
+ * File name: prefix_site.smc. Layout (big endian):
+ * header: magic, version, number of nodes n, number of iterations C, parent nodeNum of each node (n ints), 
+ *         length and bytes of the first mapping line (used to build the topology template), 
+ *         offset of each record and of the end of the file (C+1 longs).
+ * record (one per iteration): states of the nodes (2 bits each), number of events of each node (varint),
+ *         time of each node (double), states of the events (2 bits each), times of the events (double).
+ * Events are stored node by node in the order of the .map file (from the node towards the parent), so 
+ * that branch lengths are summed in the same order as when the line is parsed.
+ * @author Hui-Jie Lee
+ *
+ */
+public class SiteCache {
+	/** First int of a cache file, "MPSC" */
+	private static final int MAGIC = 0x4d505343;
+	/** Version of the format */
+	private static final int VERSION = 1;
+	/** Extension of a cache file */
+	public static final String EXTENSION = ".smc";
+	
+	private SiteCache() {
+	}
+	
+	/**
+	 * Return the cache file of a site
+	 * @param directory directory of the cache
+	 * @param name filename prefix
+	 * @param site index of the site
+	 * @return file
+	 */
+	public static File fileOf(String directory, String name, int site) {
+		return new File(directory, name+"_"+site+EXTENSION);
+	}
+	
+	/**
+	 * Write the mappings of a site
+	 * @param f cache file
+	 * @param firstLine first mapping line of the .map file
+	 * @param firstLength length of the first mapping line
+	 * @param mappings mappings of all iterations, sharing the topology of the first line
+	 * @throws IOException
+	 */
+	public static void write(File f, byte[] firstLine, int firstLength, SiteMapping[] mappings) throws IOException {
+		int n = mappings[0].getNumBranches() + 1;
+		ByteArrayOutputStream records = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(records);
+		long[] offset = new long[mappings.length + 1];
+		int headerSize = 4 * (5 + n) + firstLength + 8 * offset.length;
+		for (int j = 0; j < mappings.length; j++) {
+			offset[j] = headerSize + out.size();
+			writeRecord(out, mappings[j], mappings[0]);
+		}
+		offset[mappings.length] = headerSize + out.size();
+		out.flush();
+		
+		DataOutputStream file = new DataOutputStream(new FileOutputStream(f));
+		try {
+			file.writeInt(MAGIC);
+			file.writeInt(VERSION);
+			file.writeInt(n);
+			file.writeInt(mappings.length);
+			for (int i = 0; i < n; i++) {
+				file.writeInt(mappings[0].getParent(i));
+			}
+			file.writeInt(firstLength);
+			file.write(firstLine, 0, firstLength);
+			for (int j = 0; j < offset.length; j++) {
+				file.writeLong(offset[j]);
+			}
+			records.writeTo(file);
+		} finally {
+			file.close();
+		}
+	}
+	
+	/**
+	 * Write one mapping
+	 * @param out
+	 * @param m mapping
+	 * @param first mapping of the first iteration, giving the topology of the file
+	 * @throws IOException if the mapping does not have the topology of the file
+	 */
+	private static void writeRecord(DataOutputStream out, SiteMapping m, SiteMapping first) throws IOException {
+		int n = first.getNumBranches() + 1;
+		if (m.getNumBranches() + 1 != n) {
+			throw new IOException("A mapping does not have the topology of the first mapping, it cannot be cached");
+		}
+		int numEvents = 0;
+		for (int i = 0; i < n; i++) {
+			if (m.getParent(i) != first.getParent(i)) {
+				throw new IOException("A mapping does not have the topology of the first mapping, it cannot be cached");
+			}
+			numEvents += m.getEventCount(i);
+		}
+		//node states
+		writeCodes(out, n, m, false);
+		//event counts
+		for (int i = 0; i < n; i++) {
+			int count = m.getEventCount(i);
+			while (count >= 0x80) {
+				out.writeByte((count & 0x7f) | 0x80);
+				count >>>= 7;
+			}
+			out.writeByte(count);
+		}
+		//node times
+		for (int i = 0; i < n; i++) {
+			out.writeDouble(m.getTime(i));
+		}
+		//event states and times, from the node towards the parent
+		writeCodes(out, numEvents, m, true);
+		for (int i = 0; i < n; i++) {
+			int start = m.getEventStart(i);
+			for (int k = m.getEventCount(i) - 1; k >= 0; k--) {
+				out.writeDouble(m.getEventTimes()[start+k]);
+			}
+		}
+	}
+	
+	/**
+	 * Write nucleotide codes, 4 per byte
+	 * @param out
+	 * @param count number of codes
+	 * @param m mapping
+	 * @param events true for the states of the events (from the node towards the parent), false for the states of the nodes
+	 * @throws IOException
+	 */
+	private static void writeCodes(DataOutputStream out, int count, SiteMapping m, boolean events) throws IOException {
+		int packed = 0;
+		int k = 0;
+		int n = m.getNumBranches() + 1;
+		for (int i = 0; i < n; i++) {
+			int numCodes = events ? m.getEventCount(i) : 1;
+			for (int e = numCodes - 1; e >= 0; e--) {
+				int code = events ? m.getEventStates()[m.getEventStart(i)+e] : m.getState(i);
+				packed |= code << (2 * (k & 3));
+				if ((k & 3) == 3) {
+					out.writeByte(packed);
+					packed = 0;
+				}
+				k++;
+			}
+		}
+		if ((k & 3) != 0) {
+			out.writeByte(packed);
+		}
+	}
+	
+	/**
+	 * Opened cache file of a site
+	 */
+	public static class Reader {
+		/** Content of the file */
+		private ByteBuffer buf;
+		/** Name of the file, for error messages */
+		private String fileName;
+		/** Number of nodes */
+		private int n;
+		/** Number of iterations */
+		private int C;
+		/** Offset of the first mapping line */
+		private int lineOffset;
+		/** Length of the first mapping line */
+		private int lineLength;
+		/** Offset of the record offsets */
+		private int offsetTable;
+		/** Number of events of each node, for the record being read */
+		private int[] count;
+		
+		/**
+		 * Open a cache file. The file is read into the heap, or memory-mapped if it is 
+		 * larger than {@link MappedLineReader#MAP_THRESHOLD}.
+		 * @param f file
+		 * @throws IOException if the file is not a cache file
+		 */
+		public Reader(File f) throws IOException {
+			RandomAccessFile file = new RandomAccessFile(f, "r");
+			try {
+				FileChannel channel = file.getChannel();
+				if (channel.size() > Integer.MAX_VALUE) {
+					throw new IOException("Cache file too large: " + f);
+				}
+				this.buf = MappedLineReader.load(channel, 0, channel.size());
+			} finally {
+				file.close();
+			}
+			this.fileName = f.getPath();
+			if (buf.limit() < 16 || buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+				throw new IOException("Not a cache file of this version: " + fileName);
+			}
+			this.n = buf.getInt(8);
+			this.C = buf.getInt(12);
+			this.lineLength = buf.getInt(16 + 4 * n);
+			this.lineOffset = 20 + 4 * n;
+			this.offsetTable = lineOffset + lineLength;
+			this.count = new int[n];
+		}
+		
+		/**
+		 * Return the first mapping line of the .map file
+		 * @return copy of the line
+		 */
+		public byte[] getFirstLine() {
+			byte[] line = new byte[lineLength];
+			ByteBuffer b = buf.duplicate();
+			b.position(lineOffset);
+			b.get(line);
+			return line;
+		}
+		
+		/**
+		 * Return the number of iterations in the file
+		 * @return C
+		 */
+		public int getNumRecords() {
+			return C;
+		}
+		
+		/**
+		 * Check that the file has the topology of a template
+		 * @param template
+		 * @throws IOException if the topology is different
+		 */
+		public void check(TopologyTemplate template) throws IOException {
+			boolean match = (n == template.getNumBranches() + 1);
+			for (int i = 0; match && i < n; i++) {
+				match = (buf.getInt(16 + 4 * i) == template.getParent(i));
+			}
+			if (!match) {
+				throw new IOException("Cache file does not match the topology of the first tree: " + fileName);
+			}
+		}
+		
+		/**
+		 * Load the mapping of an iteration
+		 * @param template topology of the run, checked with {@link #check(TopologyTemplate)}
+		 * @param record index of the iteration
+		 * @return mapping
+		 */
+		public SiteMapping read(TopologyTemplate template, int record) {
+			SiteMapping m = template.newMapping();
+			int pos = (int) buf.getLong(offsetTable + 8 * record);
+			//node states
+			int statePos = pos;
+			pos += (n + 3) / 4;
+			//event counts
+			int numEvents = 0;
+			for (int i = 0; i < n; i++) {
+				int c = 0;
+				int shift = 0;
+				int b;
+				do {
+					b = buf.get(pos++);
+					c |= (b & 0x7f) << shift;
+					shift += 7;
+				} while ((b & 0x80) != 0);
+				count[i] = c;
+				numEvents += c;
+			}
+			int timePos = pos;
+			int eventStatePos = timePos + 8 * n;
+			int eventTimePos = eventStatePos + (numEvents + 3) / 4;
+			int e = 0;
+			for (int i = 0; i < n; i++) {
+				m.startNode(i);
+				m.setStateCode(i, code(statePos, i));
+				m.setTime(i, buf.getDouble(timePos + 8 * i));
+				for (int k = 0; k < count[i]; k++) {
+					m.addPathStateCode(i, code(eventStatePos, e));
+					m.addPathTime(i, buf.getDouble(eventTimePos + 8 * e));
+					e++;
+				}
+			}
+			m.finish();
+			return m;
+		}
+		
+		/**
+		 * Return a nucleotide code packed 4 per byte
+		 * @param start offset of the packed codes
+		 * @param k index of the code
+		 * @return code
+		 */
+		private int code(int start, int k) {
+			return (buf.get(start + (k >> 2)) >> (2 * (k & 3))) & 3;
+		}
+		
+		/**
+		 * Load the mappings of the iterations that are kept
+		 * @param template topology of the run
+		 * @param filter iterations kept
+		 * @return mappings
+		 * @throws IOException if the file has less iterations or another topology
+		 */
+		public SiteMapping[] readAll(TopologyTemplate template, IterationFilter filter) throws IOException {
+			if (C < filter.getNumRecords()) {
+				throw new IOException("Unexpected end of file " + fileName);
+			}
+			check(template);
+			SiteMapping[] mappings = new SiteMapping[filter.getNumKept()];
+			int j = 0;
+			for (int record = 0; record < filter.getNumRecords(); record++) {
+				if (filter.isKept(record)) {
+					mappings[j++] = read(template, record);
+				}
+			}
+			return mappings;
+		}
+		
+	}
+	
+}
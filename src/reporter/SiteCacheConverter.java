@@ -0,0 +1,90 @@
+package reporter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * One-time conversion of the .map files of a run into binary site caches ({@link SiteCache}).
+ * All C iterations are cached, so later runs can use any burn-in and thinning.
+ * @author Hui-Jie Lee
+ *
+ */
+public class SiteCacheConverter {
+	
+	/**
+	 * Convert the .map files of sites start ... end
+	 * @param args[0]: start index
+	 * @param args[1]: end index
+	 * @param args[2]: number of iterations
+	 * @param args[3]: prefix of filename
+	 * @param args[4]: outgroup filename
+	 * @param args[5]: directory of the cache files
+	 * @param args[6...]: optional, --inputDir, --bundle and record layout options, as for Main
+	 */
+	public static void main(String args[]) {
+		if (args.length < 6) {
+			System.out.println("Argument error.");
+			return;
+		}
+		int start = Integer.parseInt(args[0]);
+		int end = Integer.parseInt(args[1]);
+		int C = Integer.parseInt(args[2]);
+		String name = args[3];
+		String outgroup = args[4];
+		String cacheDir = args[5];
+		MappingOptions options = MappingOptions.parse(Arrays.copyOfRange(args, 6, args.length));
+		try {
+			convert(start, end, C, name, outgroup, cacheDir, options);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Convert the .map files of sites start ... end
+	 * @param start index of the first site
+	 * @param end index of the last site
+	 * @param C number of iterations in each file
+	 * @param name filename prefix
+	 * @param outgroupFileName
+	 * @param cacheDir directory of the cache files
+	 * @param options location (input directory or bundle) and record layout of the .map files
+	 * @throws IOException
+	 */
+	public static void convert(int start, int end, int C, String name, String outgroupFileName, String cacheDir, MappingOptions options) throws IOException {
+		MapInput input = new MapInput(options.getInputDir(), options.getLayout(), new IterationFilter(C));
+		if (options.getBundle() != null) {
+			input.setBundle(new MapBundle(new File(options.getBundle())));
+		}
+		TreeParser parser = new TreeParser(outgroupFileName);
+		new File(cacheDir).mkdirs();
+		for (int site = start; site <= end; site++) {
+			System.out.println("site="+site);
+			String inputMap = input.fileName(name, site);
+			SiteMapping[] mappings = new SiteMapping[C];
+			byte[] firstLine = null;
+			LineSource r = input.open(name, site);
+			try {
+				for (int j = 0; j < C; j++) {
+					int length = input.getLayout().readMapping(r, inputMap);
+					if (j == 0) {
+						firstLine = Arrays.copyOf(r.getBuffer(), length);
+						if (parser.getTemplate() == null) {
+							parser.tokenizeTemplate(firstLine, firstLine.length);
+						}
+					}
+					try {
+						mappings[j] = parser.tokenizeMapping(r.getBuffer(), length);
+					} catch (IOException e) {
+						throw new IOException(inputMap + ", line " + input.getLayout().getLineNumber(j) + ": " + e.getMessage(), e);
+					}
+				}
+			} finally {
+				r.close();
+			}
+			SiteCache.write(SiteCache.fileOf(cacheDir, name, site), firstLine, firstLine.length, mappings);
+		}
+	}
+	
+}
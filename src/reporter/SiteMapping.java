@@ -0,0 +1,310 @@
+package reporter;
+
+import java.util.Arrays;
+
+/**
+ * Store one mapping (one MCMC iteration) of a single site without building a Tree.
+ * Nodes are indexed by nodeNum, i.e. the same numbering as Tree.setNodeNum(), so branch j
+ * is the branch that ends at node j. The root has the last index.
+ * For each node, the substitution events on the branch to its parent are stored in one flat array,
+ * in forward order (from the parent to the node): the branch starts in the parent state,
+ * path state k is entered after path times 0..k, and the last interval {@link #getTime(int)}
+ * ends at the node. States are stored as nucleotide codes (see {@link Nucleotide}).
+ * The topology ({@link CompactTree}) is shared by all mappings of a run.
+ * @author Hui-Jie Lee
+ *
+ */
+public class SiteMapping {
+	/** Topology shared by all mappings of a run */
+	private CompactTree topology;
+	/** State (nucleotide code) of each node */
+	private byte[] state;
+	/** Time from the node to its closest event (or to its parent if there is no event) */
+	private double[] time;
+	/** Branch length of the branch ending at each node */
+	private double[] branchLength;
+	/** Offset of the events of each node in eventState / eventTime */
+	private int[] eventStart;
+	/** Number of events on the branch ending at each node */
+	private int[] eventCount;
+	/** Path states (nucleotide codes) of all branches */
+	private byte[] eventState;
+	/** Path times of all branches */
+	private double[] eventTime;
+	/** Number of events stored */
+	private int eventSize;
+	/** Node being filled by the parser, -1 if none */
+	private int current;
+
+	/**
+	 * Constructor for a mapping filled by TreeParser.
+	 * @param topology topology of the mapping
+	 */
+	public SiteMapping(CompactTree topology) {
+		int n = topology.getNumNodes();
+		this.topology = topology;
+		this.state = new byte[n];
+		this.time = new double[n];
+		this.branchLength = new double[n];
+		this.eventStart = new int[n];
+		this.eventCount = new int[n];
+		this.eventState = new byte[4 * n];
+		this.eventTime = new double[4 * n];
+		this.current = -1;
+	}
+
+	/**
+	 * Constructor. Copy the mapping stored in a tree.
+	 * The nodes must have been numbered (Tree.setNodeNum()).
+	 * @param t tree
+	 */
+	public SiteMapping(Tree t) {
+		this(new CompactTree(t));
+		for (int i = 0; i < state.length; i++) {
+			TreeNode node = t.getNodeByNodeNum(i);
+			startNode(i);
+			setStateCode(i, node.getStateCode());
+			setTime(i, node.getTime());
+			//path of the node is added from the node towards the parent, as in the .map file
+			for (int k = node.getPathStateSize() - 1; k >= 0; k--) {
+				addPathStateCode(i, node.getPathStateCode(k));
+				addPathTime(i, node.getPathTime(k));
+			}
+		}
+		finish();
+	}
+
+	/**
+	 * Start filling a node. The previous node is finished.
+	 * @param nodeNum
+	 */
+	void startNode(int nodeNum) {
+		finishNode();
+		current = nodeNum;
+		eventStart[nodeNum] = eventSize;
+		eventCount[nodeNum] = 0;
+	}
+
+	/**
+	 * Set the state of a node
+	 * @param nodeNum
+	 * @param s state (ASCII character G, C, T or A)
+	 */
+	void setState(int nodeNum, byte s) {
+		state[nodeNum] = (byte) Nucleotide.code(s);
+	}
+
+	/**
+	 * Set the state of a node
+	 * @param nodeNum
+	 * @param code state (nucleotide code)
+	 */
+	void setStateCode(int nodeNum, int code) {
+		state[nodeNum] = (byte) code;
+	}
+
+	/**
+	 * Set the time from the node to its closest event
+	 * @param nodeNum
+	 * @param t time
+	 */
+	void setTime(int nodeNum, double t) {
+		time[nodeNum] = t;
+		branchLength[nodeNum] = t;
+	}
+
+	/**
+	 * Add a path state. Path states are given from the node towards the parent.
+	 * @param nodeNum
+	 * @param s state (ASCII character G, C, T or A)
+	 */
+	void addPathState(int nodeNum, byte s) {
+		addPathStateCode(nodeNum, Nucleotide.code(s));
+	}
+
+	/**
+	 * Add a path state. Path states are given from the node towards the parent.
+	 * @param nodeNum
+	 * @param code state (nucleotide code)
+	 */
+	void addPathStateCode(int nodeNum, int code) {
+		if (eventSize == eventState.length) {
+			eventState = Arrays.copyOf(eventState, 2 * eventSize);
+			eventTime = Arrays.copyOf(eventTime, 2 * eventSize);
+		}
+		eventState[eventSize] = (byte) code;
+		eventTime[eventSize] = 0;
+		eventSize++;
+		eventCount[nodeNum]++;
+	}
+
+	/**
+	 * Add the path time that follows the last path state
+	 * @param nodeNum
+	 * @param t time
+	 */
+	void addPathTime(int nodeNum, double t) {
+		eventTime[eventSize-1] = t;
+		//same summation order as TreeNode.getBranchLength()
+		branchLength[nodeNum] += t;
+	}
+
+	/**
+	 * Return the number of path states of the node being filled
+	 * @param nodeNum
+	 * @return number of path states
+	 */
+	int getPathStateSize(int nodeNum) {
+		return eventCount[nodeNum];
+	}
+
+	/**
+	 * Finish filling the mapping
+	 */
+	void finish() {
+		finishNode();
+	}
+
+	/**
+	 * Reverse the events of the current node so that they are stored from the parent to the node
+	 */
+	private void finishNode() {
+		if (current < 0) return;
+		int lo = eventStart[current];
+		int hi = lo + eventCount[current] - 1;
+		while (lo < hi) {
+			byte s = eventState[lo];
+			eventState[lo] = eventState[hi];
+			eventState[hi] = s;
+			double t = eventTime[lo];
+			eventTime[lo] = eventTime[hi];
+			eventTime[hi] = t;
+			lo++;
+			hi--;
+		}
+		current = -1;
+	}
+
+	/**
+	 * Return the number of branches
+	 * @return number of branches
+	 */
+	public int getNumBranches() {
+		return state.length - 1;
+	}
+
+	/**
+	 * Check whether the mapping has a substitution event on any branch
+	 * @return false if no branch has an event
+	 */
+	public boolean hasEvents() {
+		return eventSize > 0;
+	}
+	
+	/**
+	 * Return the topology of the mapping
+	 * @return topology, shared with the other mappings of the run
+	 */
+	public CompactTree getTopology() {
+		return topology;
+	}
+	
+	/**
+	 * Return the parent of a node
+	 * @param nodeNum
+	 * @return parent nodeNum, -1 for the root
+	 */
+	public int getParent(int nodeNum) {
+		return topology.getParent(nodeNum);
+	}
+
+	/**
+	 * Return the state of a node
+	 * @param nodeNum
+	 * @return state (nucleotide code)
+	 */
+	public byte getState(int nodeNum) {
+		return state[nodeNum];
+	}
+
+	/**
+	 * Return the state at the root
+	 * @return state (nucleotide code)
+	 */
+	public byte getRootState() {
+		return state[topology.getRoot()];
+	}
+
+	/**
+	 * Return the state of the parent node, i.e. the state at the start of a branch
+	 * @param branch
+	 * @return state (nucleotide code)
+	 */
+	public byte getParentState(int branch) {
+		return state[topology.getParent(branch)];
+	}
+
+	/**
+	 * Return the time of the last interval of a branch (from the last event to the node)
+	 * @param branch
+	 * @return time
+	 */
+	public double getTime(int branch) {
+		return time[branch];
+	}
+
+	/**
+	 * Return the branch length, summed in the same order as TreeNode.getBranchLength()
+	 * @param branch
+	 * @return branch length
+	 */
+	public double getBranchLength(int branch) {
+		return branchLength[branch];
+	}
+
+	/**
+	 * Return the number of substitution events on a branch
+	 * @param branch
+	 * @return number of events
+	 */
+	public int getEventCount(int branch) {
+		return eventCount[branch];
+	}
+
+	/**
+	 * Return the offset of the events of a branch in {@link #getEventStates()} and {@link #getEventTimes()}
+	 * @param branch
+	 * @return offset
+	 */
+	public int getEventStart(int branch) {
+		return eventStart[branch];
+	}
+
+	/**
+	 * Return the path states of all branches. Read only.
+	 * @return path states (nucleotide codes)
+	 */
+	public byte[] getEventStates() {
+		return eventState;
+	}
+
+	/**
+	 * Return the path times of all branches. Read only.
+	 * The event k of a branch happens after the time eventTimes[start] + ... + eventTimes[start+k].
+	 * @return path times
+	 */
+	public double[] getEventTimes() {
+		return eventTime;
+	}
+
+	/**
+	 * Return an estimate of the heap used by the mapping, without the shared topology:
+	 * the arrays of the mapping and 16 bytes of header per object
+	 * @return size in bytes
+	 */
+	public long getSizeInBytes() {
+		return 7 * 16 + state.length + 8L * time.length + 8L * branchLength.length + 4L * eventStart.length
+			+ 4L * eventCount.length + eventState.length + 8L * eventTime.length;
+	}
+
+}
@@ -0,0 +1,385 @@
+package reporter;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Sliding window of three consecutive sites used by MappingParser.
+ * The parsed mappings (C per site) of sites i, i+1 and i+2 are kept in a ring buffer,
+ * so that moving the window from i to i+1 only reads and parses the .map file of site i+3.
+ * Each .map file is therefore parsed once instead of three times.
+ * Lines are parsed against the topology template of the parser, so no Tree is built.
+ * If a thread pool is given, the lines of a site are read by the calling thread and parsed 
+ * in blocks of iterations by the pool, each pool thread reusing its own parser session.
+ * With read-ahead ({@link #startReadAhead(int, int, int)}), the sites are read by an I/O thread 
+ * ({@link LinePrefetcher}) and parsed by a parse thread, while the calling thread merges the current window.
+ * Both stages are connected by bounded queues, so they stop when they are too far ahead.
+ * @author Hui-Jie Lee
+ *
+ */
+public class SiteWindow {
+
+	/** Number of sites in the window */
+	private static final int WIDTH = 3;
+	/** Maximum number of lines read ahead by the I/O stage of the read-ahead */
+	private static final int LINE_QUEUE_CAPACITY = 256;
+
+	/** Opens the .map files */
+	private MapInput input;
+	/** Filename prefix */
+	private String name;
+	/** Number of iterations kept from each file */
+	private int C;
+	/** Parser session shared by all sites, holding the outgroup */
+	private TreeParser parser;
+	/** Parser session of each pool thread, copied from the parser on first use */
+	private ThreadLocal<TreeParser> sessions = new ThreadLocal<TreeParser>() {
+		protected TreeParser initialValue() {
+			return new TreeParser(parser);
+		}
+	};
+	/** Ring buffer of parsed sites. ring[site % 3][iteration] */
+	private SiteMapping[][] ring;
+	/** Site index stored in each slot of the ring buffer, -1 if empty */
+	private int[] siteInSlot;
+	/** Index of the first site in the window */
+	private int first;
+	/** Pool parsing blocks of iterations, null to parse in the calling thread */
+	private ExecutorService pool;
+	/** Number of threads of the pool */
+	private int threads;
+	/** Lines of the block being read, copied from the line reader */
+	private byte[][] blockLines;
+	/** Number of lines in the block being read */
+	private int blockSize;
+	/** Iteration of the first line of the block being read */
+	private int blockFirst;
+	/** Blocks being parsed by the pool, in order */
+	private ArrayDeque<Future<Object>> pending = new ArrayDeque<Future<Object>>();
+	/** I/O stage of the read-ahead, null without read-ahead */
+	private LinePrefetcher lines;
+	/** Sites parsed ahead (SiteMapping[]), or the exception that stopped the parse thread (Throwable) */
+	private ArrayBlockingQueue<Object> parsed;
+	/** Parse thread of the read-ahead */
+	private Thread parseThread;
+	/** Next site expected from the read-ahead */
+	private int nextParsed;
+
+	/**
+	 * Constructor
+	 * @param name filename prefix
+	 * @param C number of iterations
+	 * @param parser parser session used for all trees of the run, holding the topology template
+	 */
+	public SiteWindow(String name, int C, TreeParser parser) {
+		this(new MapInput(null, C), name, parser);
+	}
+	
+	/**
+	 * Constructor
+	 * @param input opens the .map files and selects the iterations that are kept
+	 * @param name filename prefix
+	 * @param parser parser session used for all trees of the run, holding the topology template
+	 */
+	public SiteWindow(MapInput input, String name, TreeParser parser) {
+		this.input = input;
+		this.name = name;
+		this.C = input.getFilter().getNumKept();
+		this.parser = parser;
+		this.ring = new SiteMapping[WIDTH][];
+		this.siteInSlot = new int[WIDTH];
+		for (int k = 0; k < WIDTH; k++) {
+			siteInSlot[k] = -1;
+		}
+		this.first = -1;
+	}
+	
+	/**
+	 * Constructor for a window whose sites are parsed by a thread pool
+	 * @param input opens the .map files and selects the iterations that are kept
+	 * @param name filename prefix
+	 * @param parser parser session used for all trees of the run, holding the topology template
+	 * @param pool thread pool parsing blocks of iterations
+	 * @param threads number of threads of the pool
+	 */
+	public SiteWindow(MapInput input, String name, TreeParser parser, ExecutorService pool, int threads) {
+		this(input, name, parser);
+		this.pool = pool;
+		this.threads = threads;
+	}
+
+	/**
+	 * Start reading and parsing sites in the background. The window must then be moved over 
+	 * consecutive windows only, so that the sites are needed in the same order.
+	 * @param firstSite first site to be read
+	 * @param endSite site after the last one to be read
+	 * @param depth maximum number of sites parsed ahead
+	 */
+	public void startReadAhead(final int firstSite, final int endSite, int depth) {
+		if (input.getCacheDir() == null) {
+			lines = new LinePrefetcher(input, name, firstSite, endSite, LINE_QUEUE_CAPACITY);
+		}
+		parsed = new ArrayBlockingQueue<Object>(depth);
+		nextParsed = firstSite;
+		parseThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					for (int site = firstSite; site < endSite; site++) {
+						parsed.put(readSite(site));
+					}
+				} catch (InterruptedException e) {
+					//closed
+				} catch (Throwable t) {
+					//passed to the calling thread, which waits for the next site
+					try {
+						parsed.put(t);
+					} catch (InterruptedException e) {
+						//closed
+					}
+				}
+			}
+		}, "SiteParser-" + name + "-" + firstSite);
+		parseThread.setDaemon(true);
+		if (lines != null) lines.start();
+		parseThread.start();
+	}
+	
+	/**
+	 * Stop the read-ahead threads, if any
+	 */
+	public void close() {
+		if (parseThread != null) {
+			parseThread.interrupt();
+			if (lines != null) lines.close();
+		}
+	}
+	
+	/**
+	 * Move the window so that it covers sites i, i+1 and i+2.
+	 * Only the sites that are not already in the ring buffer are read.
+	 * @param i index of the first site
+	 * @throws IOException
+	 */
+	public void moveTo(int i) throws IOException {
+		for (int site = i; site < (i+WIDTH); site++) {
+			int slot = site % WIDTH;
+			if (siteInSlot[slot] != site) {
+				ring[slot] = (parsed == null) ? readSite(site) : takeParsed(site);
+				siteInSlot[slot] = site;
+			}
+		}
+		first = i;
+	}
+
+	/**
+	 * Return the three mappings of the window for a given iteration
+	 * @param iteration index of the MCMC iteration
+	 * @return mappings for site i, i+1 and i+2
+	 */
+	public SiteMapping[] getMappings(int iteration) {
+		SiteMapping[] sites = new SiteMapping[WIDTH];
+		for (int k = 0; k < WIDTH; k++) {
+			sites[k] = ring[(first+k) % WIDTH][iteration];
+		}
+		return sites;
+	}
+
+	/**
+	 * Return a site parsed by the read-ahead, waiting for it if needed
+	 * @param site index of the site
+	 * @return C mappings
+	 * @throws IOException
+	 */
+	private SiteMapping[] takeParsed(int site) throws IOException {
+		if (site != nextParsed) {
+			throw new IllegalStateException("Site " + site + " requested but site " + nextParsed + " was read ahead");
+		}
+		Object item;
+		try {
+			item = parsed.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for site " + site);
+		}
+		nextParsed++;
+		if (item instanceof SiteMapping[]) {
+			return (SiteMapping[]) item;
+		} else if (item instanceof IOException) {
+			throw (IOException) item;
+		} else if (item instanceof RuntimeException) {
+			throw (RuntimeException) item;
+		}
+		throw (Error) item;
+	}
+	
+	/**
+	 * Read and parse C mappings of a given site, from its .map file or from the I/O stage of the read-ahead.
+	 * The records of the iterations that are not kept are skipped without being parsed.
+	 * With a cache directory, the mappings are loaded from the binary cache of the site instead.
+	 * @param site index of the site
+	 * @return C mappings
+	 * @throws IOException
+	 */
+	private SiteMapping[] readSite(int site) throws IOException {
+		if (input.getCacheDir() != null) {
+			return input.openCache(name, site).readAll(parser.getTemplate(), input.getFilter());
+		}
+		SiteMapping[] mappings = new SiteMapping[C];
+		String inputMap = input.fileName(name, site);
+		LineSource r = null;
+		try {
+			if (lines == null) {
+				r = input.open(name, site);
+			}
+			if (r == null) {
+				for (int j = 0; j < C; j++) { //the I/O stage only sends the mappings that are kept
+					byte[] line = lines.take();
+					parse(line, line.length, false, site, j, mappings);
+				}
+			} else {
+				IterationFilter filter = input.getFilter();
+				int j = 0;
+				for (int record = 0; record < filter.getNumRecords(); record++) {
+					if (filter.isKept(record)) {
+						int length = input.getLayout().readMapping(r, inputMap);
+						parse(r.getBuffer(), length, true, site, j++, mappings);
+					} else {
+						input.getLayout().skipRecord(r, inputMap);
+					}
+				}
+			}
+			if (pool != null) {
+				submitBlock(site, mappings);
+				while (!pending.isEmpty()) {
+					waitFor(pending.poll());
+				}
+			}
+		} finally {
+			if (r != null) r.close();
+			if (pool != null) {
+				for (Future<Object> f : pending) {
+					f.cancel(true);
+				}
+				pending.clear();
+				blockSize = 0;
+			}
+		}
+		return mappings;
+	}
+	
+	/**
+	 * Parse a mapping line, or add it to the block parsed by the pool
+	 * @param buf line buffer
+	 * @param length length of the line
+	 * @param copy true if the buffer is reused by the caller and must be copied before it is parsed later
+	 * @param site index of the site
+	 * @param iteration index of the MCMC iteration of the line
+	 * @param mappings mappings of the site
+	 * @throws IOException
+	 */
+	private void parse(byte[] buf, int length, boolean copy, int site, int iteration, SiteMapping[] mappings) throws IOException {
+		if (pool == null) {
+			mappings[iteration] = tokenize(parser, buf, length, site, iteration);
+		} else {
+			addLine(copy ? Arrays.copyOf(buf, length) : buf, site, iteration, mappings);
+		}
+	}
+	
+	/**
+	 * Parse a mapping line, naming its file and line if it does not match the topology of the run
+	 * @param session parser session of the calling thread
+	 * @param buf line buffer
+	 * @param length length of the line
+	 * @param site index of the site
+	 * @param iteration index of the kept MCMC iteration of the line
+	 * @return mapping of the line
+	 * @throws IOException
+	 */
+	private SiteMapping tokenize(TreeParser session, byte[] buf, int length, int site, int iteration) throws IOException {
+		try {
+			return session.tokenizeMapping(buf, length);
+		} catch (IOException e) {
+			long line = input.getLayout().getLineNumber(input.getFilter().getRecord(iteration));
+			throw new IOException(input.fileName(name, site) + ", line " + line + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Add a line to the block being read, and submit the block once it is full.
+	 * At most 2 x threads blocks are parsed at once, so that the copied lines do not fill the memory.
+	 * @param line copy of the line, owned by the window
+	 * @param site index of the site
+	 * @param iteration index of the MCMC iteration of the line
+	 * @param mappings mappings of the site, filled by the pool
+	 * @throws IOException
+	 */
+	private void addLine(byte[] line, int site, int iteration, SiteMapping[] mappings) throws IOException {
+		if (blockLines == null) {
+			//enough blocks to keep all threads busy, but not more than 64 lines each
+			blockLines = new byte[Math.max(1, Math.min(64, (C + 4*threads - 1) / (4*threads)))][];
+		}
+		if (blockSize == 0) {
+			blockFirst = iteration;
+		}
+		blockLines[blockSize++] = line;
+		if (blockSize == blockLines.length) {
+			submitBlock(site, mappings);
+		}
+	}
+	
+	/**
+	 * Submit the block being read to the pool
+	 * @param site index of the site
+	 * @param mappings mappings of the site, filled by the pool
+	 * @throws IOException
+	 */
+	private void submitBlock(final int site, final SiteMapping[] mappings) throws IOException {
+		if (blockSize == 0) return;
+		while (pending.size() >= 2 * threads) {
+			waitFor(pending.poll());
+		}
+		final byte[][] lines = Arrays.copyOf(blockLines, blockSize);
+		final int from = blockFirst;
+		pending.add(pool.submit(new Callable<Object>() {
+			public Object call() throws IOException {
+				TreeParser session = sessions.get();
+				for (int k = 0; k < lines.length; k++) {
+					mappings[from+k] = tokenize(session, lines[k], lines[k].length, site, from+k);
+				}
+				return null;
+			}
+		}));
+		blockSize = 0;
+	}
+	
+	/**
+	 * Wait for a block to be parsed, rethrowing the exception of the pool
+	 * @param f
+	 * @throws IOException
+	 */
+	static void waitFor(Future<?> f) throws IOException {
+		try {
+			f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while parsing a site");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+	
+}
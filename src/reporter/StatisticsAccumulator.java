@@ -0,0 +1,220 @@
+package reporter;
+
+/**
+ * Sufficient statistics of all windows for each MCMC iteration, filled while the triplet paths are merged.
+ * The path of a branch is never stored: each interval adds its time to the state of the second site
+ * and each transition is counted as soon as it is visited.
+ * Times and proportions are summed over windows with Neumaier compensated summation: each sum keeps
+ * the rounding error in a separate compensation term, which is added back when the sums are returned.
+ * @author Hui-Jie Lee
+ *
+ */
+public class StatisticsAccumulator implements TripletVisitor {
+	
+	/** The number of types of changes */
+	public static final int NUM_TYPE_CHANGES = 18;
+	/** The number of types of states */
+	public static final int NUM_TYPE_STATES = 6;
+	
+	/** Store number of changes. dim = (# of branches) x 18 x C */
+	private int[][][] numberOfChanges;
+	/** Store time of states. dim = (# of branches) x 6 x C */
+	private double[][][] timeStates;
+	/** Compensation of timeStates */
+	private double[][][] timeStatesError;
+	/** Store proportion of states. dim = (# of branches) x 6 x C */
+	private double[][][] propStates;
+	/** Compensation of propStates */
+	private double[][][] propStatesError;
+	/** Store branch lengths. dim = (# of branches) x C */
+	private double[][] br;
+	/** Store the root state count. dim = 4 (G, C, T, A) x C */
+	private int[][] rootStateCount;
+	
+	/** Time in each state on the branch being visited */
+	private double[] branchTime = new double[NUM_TYPE_STATES];
+	/** Index of the MCMC iteration being visited */
+	private int iteration;
+	
+	/**
+	 * Constructor
+	 * @param branchNum number of branches
+	 * @param C number of iterations
+	 */
+	public StatisticsAccumulator(int branchNum, int C) {
+		numberOfChanges = new int[branchNum][NUM_TYPE_CHANGES][C];
+		timeStates = new double[branchNum][NUM_TYPE_STATES][C];
+		timeStatesError = new double[branchNum][NUM_TYPE_STATES][C];
+		propStates = new double[branchNum][NUM_TYPE_STATES][C];
+		propStatesError = new double[branchNum][NUM_TYPE_STATES][C];
+		br = new double[branchNum][C];
+		rootStateCount = new int[4][C];
+	}
+	
+	/**
+	 * Constructor of a view that shares the arrays of an accumulator
+	 * @param shared
+	 */
+	private StatisticsAccumulator(StatisticsAccumulator shared) {
+		numberOfChanges = shared.numberOfChanges;
+		timeStates = shared.timeStates;
+		timeStatesError = shared.timeStatesError;
+		propStates = shared.propStates;
+		propStatesError = shared.propStatesError;
+		br = shared.br;
+		rootStateCount = shared.rootStateCount;
+	}
+	
+	/**
+	 * Return a view that writes into the same arrays but has its own iteration and branch times.
+	 * Views used by different threads must visit different iterations, so that they never write the same entry.
+	 * @return view
+	 */
+	public StatisticsAccumulator newView() {
+		return new StatisticsAccumulator(this);
+	}
+	
+	/**
+	 * Set the MCMC iteration of the next visited paths
+	 * @param iteration
+	 */
+	public void setIteration(int iteration) {
+		this.iteration = iteration;
+	}
+	
+	/**
+	 * Increase root state count by the state of the second position
+	 * @param state nucleotide code, in the order G, C, T, A
+	 */
+	public void addRootState(int state) {
+		rootStateCount[state][iteration]++;
+	}
+	
+	public void visitInterval(int branch, int triplet, double time) {
+		branchTime[TripletParser.stateClass(triplet)] += time;
+	}
+	
+	public void visitTransition(int branch, int from, int to) {
+		int type = TripletParser.changeType(from, to);
+		if (type >= 0) {
+			numberOfChanges[branch][type][iteration]++;
+		}
+	}
+	
+	public void endBranch(int branch, double branchLength) {
+		br[branch][iteration] = branchLength;
+		for (int k = 0; k < NUM_TYPE_STATES; k++) {
+			add(timeStates[branch][k], timeStatesError[branch][k], iteration, branchTime[k]);
+			add(propStates[branch][k], propStatesError[branch][k], iteration, branchTime[k]/branchLength);
+			branchTime[k] = 0;
+		}
+	}
+	
+	/**
+	 * Add the statistics of another accumulator, e.g. the one of a range of later windows.
+	 * Branch lengths are taken from the other accumulator, as if its windows were visited after ours.
+	 * @param other accumulator with the same dimensions
+	 */
+	public void add(StatisticsAccumulator other) {
+		for (int l = 0; l < br.length; l++) {
+			for (int k = 0; k < NUM_TYPE_CHANGES; k++) {
+				for (int j = 0; j < br[l].length; j++) {
+					numberOfChanges[l][k][j] += other.numberOfChanges[l][k][j];
+				}
+			}
+			for (int k = 0; k < NUM_TYPE_STATES; k++) {
+				for (int j = 0; j < br[l].length; j++) {
+					timeStatesError[l][k][j] += other.timeStatesError[l][k][j];
+					add(timeStates[l][k], timeStatesError[l][k], j, other.timeStates[l][k][j]);
+					propStatesError[l][k][j] += other.propStatesError[l][k][j];
+					add(propStates[l][k], propStatesError[l][k], j, other.propStates[l][k][j]);
+				}
+			}
+			System.arraycopy(other.br[l], 0, br[l], 0, br[l].length);
+		}
+		for (int s = 0; s < 4; s++) {
+			for (int j = 0; j < rootStateCount[s].length; j++) {
+				rootStateCount[s][j] += other.rootStateCount[s][j];
+			}
+		}
+	}
+	
+	/**
+	 * Neumaier compensated summation: add x to sum[j] and the rounding error to error[j]
+	 * @param sum
+	 * @param error compensation of sum
+	 * @param j index in sum
+	 * @param x value to be added
+	 */
+	private static void add(double[] sum, double[] error, int j, double x) {
+		double s = sum[j];
+		double t = s + x;
+		if (Math.abs(s) >= Math.abs(x)) {
+			error[j] += (s - t) + x;
+		} else {
+			error[j] += (x - t) + s;
+		}
+		sum[j] = t;
+	}
+	
+	/**
+	 * Return the compensated sums
+	 * @param sum
+	 * @param error compensation of sum
+	 * @return sum + error
+	 */
+	private static double[][][] compensated(double[][][] sum, double[][][] error) {
+		double[][][] result = new double[sum.length][][];
+		for (int l = 0; l < sum.length; l++) {
+			result[l] = new double[sum[l].length][];
+			for (int k = 0; k < sum[l].length; k++) {
+				result[l][k] = new double[sum[l][k].length];
+				for (int j = 0; j < sum[l][k].length; j++) {
+					result[l][k][j] = sum[l][k][j] + error[l][k][j];
+				}
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Return the number of changes for each substitution type on branches for each MCMC iteration.
+	 * @return numberOfChanges
+	 */
+	public int[][][] getNumberOfChanges() {
+		return numberOfChanges;
+	}
+	
+	/**
+	 * Return the total time in each states on each branch for each MCMC iteration
+	 * @return timeStates
+	 */
+	public double[][][] getTimeStates() {
+		return compensated(timeStates, timeStatesError);
+	}
+	
+	/**
+	 * Return proportion of time in each state on each branch for each MCMC iteration.
+	 * @return propStates
+	 */
+	public double[][][] getPropStates() {
+		return compensated(propStates, propStatesError);
+	}
+	
+	/**
+	 * Return branch lengths for each branch for each MCMC iteration.
+	 * @return br
+	 */
+	public double[][] getBranchLengths() {
+		return br;
+	}
+	
+	/**
+	 * Return the root state count for each MCMC iteration
+	 * @return rootStateCount
+	 */
+	public int[][] getRootStateCount() {
+		return rootStateCount;
+	}
+	
+}
@@ -0,0 +1,49 @@
+package reporter;
+
+import java.util.ArrayList;
+
+/**
+ * Add the accumulators of consecutive chunks of windows along a fixed pairwise tree.
+ * The partial sums form a stack like the digits of a binary counter: adding chunk k carries
+ * once per trailing 1 bit of k, each carry adding the two partial sums of the same size on top of the stack.
+ * A pair is thus added as soon as its second half is known, and at most log2(# of chunks) + 1 partial sums
+ * are kept. The tree only depends on the number of chunks, so the result does not depend on the number
+ * of threads nor on the order in which the chunks were computed.
+ * @author Hui-Jie Lee
+ *
+ */
+public class StatisticsReducer {
+	/** Partial sums, from the earliest to the latest chunks */
+	private ArrayList<StatisticsAccumulator> partial = new ArrayList<StatisticsAccumulator>();
+	/** Number of chunks added */
+	private int numChunks;
+
+	/**
+	 * Add the accumulator of the next chunk
+	 * @param chunk index of the chunk, chunks are added in order from 0
+	 * @param stats accumulator of the chunk, reused for the partial sums
+	 */
+	public void add(int chunk, StatisticsAccumulator stats) {
+		if (chunk != numChunks) {
+			throw new IllegalArgumentException("Chunk " + chunk + " added instead of chunk " + numChunks);
+		}
+		partial.add(stats);
+		numChunks++;
+		for (int carry = chunk; (carry & 1) == 1; carry >>= 1) {
+			StatisticsAccumulator right = partial.remove(partial.size() - 1);
+			partial.get(partial.size() - 1).add(right);
+		}
+	}
+
+	/**
+	 * Return the sum of all chunks. The remaining partial sums are added from the latest to the earliest.
+	 * @return sum, null if no chunk was added
+	 */
+	public StatisticsAccumulator result() {
+		for (int top = partial.size() - 1; top > 0; top--) {
+			partial.get(top-1).add(partial.remove(top));
+		}
+		return partial.isEmpty() ? null : partial.get(0);
+	}
+
+}
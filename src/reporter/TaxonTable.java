@@ -0,0 +1,184 @@
+package reporter;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Locale;
+
+/**
+ * Symbol table of the taxon names of a run, shared by all parser sessions.
+ * Each name gets an integer id the first time it is seen, and the parser resolves the names of a line
+ * to ids straight from its byte buffer, so a known name does not create a String.
+ * The name String and the collation key (used by Tree to find duplicate names) of each id are 
+ * created once per run. Sets of taxa, e.g. the outgroup, are bit sets of ids.
+ * @author Hui-Jie Lee
+ *
+ */
+public class TaxonTable {
+	/** Names as bytes, indexed by id */
+	private byte[][] bytes;
+	/** Names, indexed by id */
+	private String[] names;
+	/** Collation keys of the names, indexed by id */
+	private CollationKey[] keys;
+	/** Hash of each name, indexed by id */
+	private int[] hashes;
+	/** Number of names */
+	private int size;
+	/** Open addressing hash table of ids, -1 for an empty slot. Its length is a power of 2 */
+	private int[] slots;
+	/** Collator comparing names, same as Tree */
+	private Collator collator;
+	
+	/**
+	 * Constructor of an empty table
+	 */
+	public TaxonTable() {
+		bytes = new byte[16][];
+		names = new String[16];
+		keys = new CollationKey[16];
+		hashes = new int[16];
+		slots = new int[32];
+		Arrays.fill(slots, -1);
+		collator = Collator.getInstance(Locale.US);
+	}
+	
+	/**
+	 * Return the id of a name, adding the name if it is new
+	 * @param buf buffer holding the name as ASCII
+	 * @param start offset of the name in the buffer
+	 * @param length length of the name
+	 * @return id
+	 */
+	public synchronized int id(byte[] buf, int start, int length) {
+		int hash = 1;
+		for (int i = 0; i < length; i++) {
+			hash = 31 * hash + buf[start+i];
+		}
+		int mask = slots.length - 1;
+		for (int slot = mix(hash) & mask; ; slot = (slot + 1) & mask) {
+			int id = slots[slot];
+			if (id < 0) {
+				return add(buf, start, length, hash, slot);
+			}
+			if (hashes[id] == hash && equals(bytes[id], buf, start, length)) {
+				return id;
+			}
+		}
+	}
+	
+	/**
+	 * Return the id of a name, adding the name if it is new
+	 * @param name taxon name
+	 * @return id
+	 */
+	public int id(String name) {
+		byte[] b = new byte[name.length()];
+		for (int i = 0; i < b.length; i++) {
+			b[i] = (byte) name.charAt(i);
+		}
+		return id(b, 0, b.length);
+	}
+	
+	/**
+	 * Return the ids of a set of names, adding the names that are new
+	 * @param taxa taxon names
+	 * @return set of ids
+	 */
+	public BitSet idsOf(String[] taxa) {
+		BitSet set = new BitSet();
+		for (int i = 0; i < taxa.length; i++) {
+			set.set(id(taxa[i]));
+		}
+		return set;
+	}
+	
+	/**
+	 * Return the name of an id
+	 * @param id
+	 * @return name, the same instance for all trees of the run
+	 */
+	public synchronized String getName(int id) {
+		return names[id];
+	}
+	
+	/**
+	 * Return the collation key of the name of an id
+	 * @param id
+	 * @return collation key
+	 */
+	public synchronized CollationKey getCollationKey(int id) {
+		return keys[id];
+	}
+	
+	/**
+	 * Return the number of names
+	 * @return size
+	 */
+	public synchronized int size() {
+		return size;
+	}
+	
+	/**
+	 * Add a new name
+	 * @param slot empty slot of the hash table where the name belongs
+	 * @return id of the name
+	 */
+	private int add(byte[] buf, int start, int length, int hash, int slot) {
+		if (size == names.length) {
+			bytes = Arrays.copyOf(bytes, 2 * size);
+			names = Arrays.copyOf(names, 2 * size);
+			keys = Arrays.copyOf(keys, 2 * size);
+			hashes = Arrays.copyOf(hashes, 2 * size);
+		}
+		int id = size++;
+		bytes[id] = Arrays.copyOfRange(buf, start, start + length);
+		char[] c = new char[length];
+		for (int i = 0; i < length; i++) {
+			c[i] = (char) (buf[start+i] & 0xff);
+		}
+		names[id] = new String(c);
+		keys[id] = collator.getCollationKey(names[id]);
+		hashes[id] = hash;
+		slots[slot] = id;
+		if (2 * size > slots.length) {
+			rehash();
+		}
+		return id;
+	}
+	
+	/**
+	 * Double the hash table
+	 */
+	private void rehash() {
+		slots = new int[2 * slots.length];
+		Arrays.fill(slots, -1);
+		int mask = slots.length - 1;
+		for (int id = 0; id < size; id++) {
+			int slot = mix(hashes[id]) & mask;
+			while (slots[slot] >= 0) {
+				slot = (slot + 1) & mask;
+			}
+			slots[slot] = id;
+		}
+	}
+	
+	/**
+	 * Spread the bits of a hash, so that the low bits used by the table depend on the whole name
+	 */
+	private static int mix(int hash) {
+		hash ^= (hash >>> 16);
+		hash *= 0x85ebca6b;
+		return hash ^ (hash >>> 13);
+	}
+	
+	private static boolean equals(byte[] name, byte[] buf, int start, int length) {
+		if (name.length != length) return false;
+		for (int i = 0; i < length; i++) {
+			if (name[i] != buf[start+i]) return false;
+		}
+		return true;
+	}
+	
+}
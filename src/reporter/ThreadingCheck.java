@@ -0,0 +1,98 @@
+package reporter;
+
+import java.util.Arrays;
+
+/**
+ * Check that the statistics of a run do not depend on the threading options: the sites are processed with
+ * --threads=1, with --threads=N splitting the windows, and with --threads=N --parallel=iterations,
+ * and the statistics are compared bit for bit. The output files of Main, which are printed from these
+ * statistics (the GTR weights included), are then byte-identical.
+ * @author Hui-Jie Lee
+ *
+ */
+public class ThreadingCheck {
+
+	/**
+	 * Run the check on sites start ... end
+	 * @param args[0]: start index
+	 * @param args[1]: end index
+	 * @param args[2]: number of iterations
+	 * @param args[3]: prefix of filename
+	 * @param args[4]: outgroup filename
+	 * @param args[5]: number of threads N compared with one thread
+	 * @param args[6...]: optional, input and record layout options, as for Main
+	 */
+	public static void main(String args[]) {
+		if (args.length < 6) {
+			System.out.println("Argument error.");
+			return;
+		}
+		int start = Integer.parseInt(args[0]);
+		int end = Integer.parseInt(args[1]);
+		int C = Integer.parseInt(args[2]);
+		String name = args[3];
+		String outgroup = args[4];
+		int threads = Integer.parseInt(args[5]);
+		String[] rest = Arrays.copyOfRange(args, 6, args.length);
+
+		MappingParser one = run(start, end, C, name, outgroup, rest, "--threads=1");
+		MappingParser windows = run(start, end, C, name, outgroup, rest, "--threads=" + threads, "--parallel=windows");
+		MappingParser iterations = run(start, end, C, name, outgroup, rest, "--threads=" + threads, "--parallel=iterations");
+		boolean same = compare(one, windows, "--threads=" + threads) & compare(one, iterations, "--threads=" + threads + " --parallel=iterations");
+		System.out.println(same ? "Output identical for all threading options." : "Output depends on the threading options.");
+		if (!same) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Process the sites with extra options
+	 * @param start
+	 * @param end
+	 * @param C
+	 * @param name
+	 * @param outgroup
+	 * @param rest options of the command line
+	 * @param threading threading options, appended to the options of the command line
+	 * @return parser holding the statistics
+	 */
+	private static MappingParser run(int start, int end, int C, String name, String outgroup, String[] rest, String... threading) {
+		String[] args = Arrays.copyOf(rest, rest.length + threading.length);
+		System.arraycopy(threading, 0, args, rest.length, threading.length);
+		return new MappingParser(start, end, C, name, outgroup, MappingOptions.parse(args));
+	}
+
+	/**
+	 * Compare the statistics of a run with those of the run with one thread.
+	 * Doubles are compared by their bits (Double.equals), so a difference in the last bit is reported.
+	 * @param one run with one thread
+	 * @param other run to be checked
+	 * @param label options of the run to be checked, for the message
+	 * @return true if all statistics are identical
+	 */
+	private static boolean compare(MappingParser one, MappingParser other, String label) {
+		boolean same = true;
+		if (!Arrays.deepEquals(one.getPropStates(), other.getPropStates())) {
+			System.err.println(label + ": PropState differs from --threads=1");
+			same = false;
+		}
+		if (!Arrays.deepEquals(one.getTimeStates(), other.getTimeStates())) {
+			System.err.println(label + ": time in states differs from --threads=1");
+			same = false;
+		}
+		if (!Arrays.deepEquals(one.getNumberOfChanges(), other.getNumberOfChanges())) {
+			System.err.println(label + ": NumChange differs from --threads=1");
+			same = false;
+		}
+		if (!Arrays.deepEquals(one.getRootStateCount(), other.getRootStateCount())) {
+			System.err.println(label + ": RootState differs from --threads=1");
+			same = false;
+		}
+		if (!Arrays.deepEquals(one.getBranchLengths(), other.getBranchLengths())) {
+			System.err.println(label + ": branch lengths differ from --threads=1");
+			same = false;
+		}
+		return same;
+	}
+
+}
@@ -0,0 +1,153 @@
+package reporter;
+
+import java.util.List;
+
+/**
+ * Topology shared by all mappings of a run.
+ * All trees in the .map files have the same topology and are written in the same order, so
+ * the first tree is parsed completely (postProcess, setNodeNum, removeOutgroup) and the resulting
+ * node numbering is frozen here. Later lines are parsed by TreeParser straight into a SiteMapping:
+ * the k-th node completed by the parser gets the nodeNum stored at position k of the template,
+ * and nodes of the removed outgroup are skipped. The number of children and the parent of each completed
+ * node are kept too, so that the parser can check that a line has the same shape.
+ * @author Hui-Jie Lee
+ *
+ */
+public class TopologyTemplate {
+	/** First tree of the run */
+	private Tree tree;
+	/** nodeNum of the k-th node completed by the parser, -1 if the node was removed with the outgroup */
+	private int[] nodeNumByPop;
+	/** Name of the k-th node completed by the parser, "" for internal nodes */
+	private String[] nameByPop;
+	/** Number of children of the k-th node completed by the parser, in the line (before the outgroup is removed) */
+	private int[] childCountByPop;
+	/** Completion index of the parent of the k-th node completed by the parser, -1 for the root */
+	private int[] parentPopByPop;
+	/** Topology of the first tree, shared by all mappings */
+	private CompactTree topology;
+
+	/**
+	 * Constructor. Validate the first tree and freeze its numbering.
+	 * @param tree first tree, after postProcess(), setNodeNum() and removeOutgroup()
+	 * @param popOrder nodes of the tree in the order they were completed by the parser
+	 * @param childCount number of children of each node of popOrder in the line
+	 * @param parentPop index in popOrder of the parent of each node of popOrder in the line, -1 for the root
+	 */
+	public TopologyTemplate(Tree tree, List<TreeNode> popOrder, int[] childCount, int[] parentPop) {
+		this.tree = tree;
+		this.childCountByPop = childCount;
+		this.parentPopByPop = parentPop;
+		int n = tree.getNumBranches() + 1;
+		this.nodeNumByPop = new int[popOrder.size()];
+		this.nameByPop = new String[popOrder.size()];
+		boolean[] seen = new boolean[n];
+		for (int k = 0; k < popOrder.size(); k++) {
+			TreeNode node = popOrder.get(k);
+			int nodeNum = node.getNodeNum();
+			nameByPop[k] = node.label; //name as written in the file, before duplicates are renamed
+			//nodes removed with the outgroup keep a stale nodeNum
+			if (nodeNum < n && tree.getNodeByNodeNum(nodeNum) == node) {
+				if (seen[nodeNum]) {
+					throw new IllegalArgumentException("Node " + nodeNum + " appears twice in the first tree");
+				}
+				seen[nodeNum] = true;
+				nodeNumByPop[k] = nodeNum;
+			} else {
+				nodeNumByPop[k] = -1;
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			if (!seen[i]) {
+				throw new IllegalArgumentException("Node " + i + " of the first tree was not parsed");
+			}
+		}
+		this.topology = new CompactTree(tree);
+	}
+
+	/**
+	 * Return the first tree of the run
+	 * @return tree
+	 */
+	public Tree getTree() {
+		return tree;
+	}
+
+	/**
+	 * Return the number of nodes completed by the parser for one line, including the outgroup
+	 * @return number of nodes in a line
+	 */
+	public int getNumParsedNodes() {
+		return nodeNumByPop.length;
+	}
+
+	/**
+	 * Return the nodeNum of the k-th node completed by the parser
+	 * @param k
+	 * @return nodeNum, -1 if the node belongs to the removed outgroup
+	 */
+	public int getNodeNum(int k) {
+		return nodeNumByPop[k];
+	}
+
+	/**
+	 * Return the name of the k-th node completed by the parser
+	 * @param k
+	 * @return name, "" for internal nodes
+	 */
+	public String getName(int k) {
+		return nameByPop[k];
+	}
+
+	/**
+	 * Return the number of children of the k-th node completed by the parser
+	 * @param k
+	 * @return number of children in the line, including the outgroup
+	 */
+	public int getChildCount(int k) {
+		return childCountByPop[k];
+	}
+
+	/**
+	 * Return the parent of the k-th node completed by the parser
+	 * @param k
+	 * @return completion index of the parent, -1 for the root
+	 */
+	public int getParentPop(int k) {
+		return parentPopByPop[k];
+	}
+
+	/**
+	 * Return the topology of the first tree
+	 * @return topology, shared by all mappings of the run
+	 */
+	public CompactTree getTopology() {
+		return topology;
+	}
+
+	/**
+	 * Return the parent of a node
+	 * @param nodeNum
+	 * @return parent nodeNum, -1 for the root
+	 */
+	public int getParent(int nodeNum) {
+		return topology.getParent(nodeNum);
+	}
+
+	/**
+	 * Return the number of branches
+	 * @return number of branches
+	 */
+	public int getNumBranches() {
+		return topology.getNumBranches();
+	}
+
+	/**
+	 * Create an empty mapping for this topology
+	 * @return mapping
+	 */
+	public SiteMapping newMapping() {
+		return new SiteMapping(topology);
+	}
+
+}
@@ -35,6 +35,7 @@
  THE USE OR OTHER DEALINGS IN THE SOFTWARE.
  */
 package reporter;
+import java.text.CollationKey;
 import java.text.Collator;
 import java.util.*;
 
@@ -57,10 +58,13 @@ public class Tree {
 	private HashMap<String, TreeNode> nodesByName; 
 	
 	/**
-	 * Assign nodeNum to each node
+	 * Nodes indexed by nodeNum. nodeNums are dense (0 ... number of nodes - 1), so an array is used.
      * Added by Hui-Jie
 	 */
-	private Map<Integer, TreeNode> nodesByNodeNum;
+	private TreeNode[] nodesByNodeNum;
+
+	/** Taxon names of the run, null if the leaves have no taxon id */
+	private TaxonTable taxa;
 
 	/** key should be unique for each tree, set by object that creates trees  */
 	private int key;
@@ -86,7 +90,15 @@ public class Tree {
 		root = new TreeNode();
 		nodes = new ArrayList<TreeNode>();
 		nodesByName = new HashMap<String, TreeNode>();
-		nodesByNodeNum = new HashMap<Integer, TreeNode>();
+		nodesByNodeNum = new TreeNode[0];
+	}
+
+	/**
+	 * Set the taxon table of the run, which holds the collation keys of the leaf names
+	 * @param taxa taxon table used by the parser
+	 */
+	public void setTaxa(TaxonTable taxa) {
+		this.taxa = taxa;
 	}
 
 	/**
@@ -138,7 +150,7 @@ public class Tree {
 	 * @return Treenode referenced by the given nodeNum
 	 */
 	public TreeNode getNodeByNodeNum(int nodeNum) {
-		if (nodeNum >= nodes.size()) return null; return (TreeNode) nodesByNodeNum.get(nodeNum);
+		if (nodeNum >= nodesByNodeNum.length) return null; return nodesByNodeNum[nodeNum];
 	}
 	
 	/**
@@ -258,47 +270,50 @@ public class Tree {
 	/**
 	 * Traverses the subtree rooted at TreeNode n in pre-order, stores the
 	 * ordering in the preorderNext field of TreeNodes. 
+	 * The subtree is traversed with an explicit stack, so deep trees do not overflow the call stack.
 	 * @param   n the root of the subtree
 	 *
 	 * @see     TreeNode
 	 */
 	private void linkSubtreeNodesInPreorder(TreeNode n) {
-
-		if(n.isLeaf()) return;
-		for(int i=0; i<n.numberChildren(); i++) {
-			linkSubtreeNodesInPreorder(n.getChild(i));
+		//internal nodes in preorder; linked in reverse order, so that a node is linked after its descendants
+		ArrayList<TreeNode> internal = new ArrayList<TreeNode>();
+		ArrayDeque<TreeNode> stack = new ArrayDeque<TreeNode>();
+		stack.push(n);
+		while (!stack.isEmpty()) {
+			TreeNode node = stack.pop();
+			if (node.isLeaf()) continue;
+			internal.add(node);
+			for (int i = node.numberChildren()-1; i >= 0; i--) {
+				stack.push(node.getChild(i));
+			}
 		}
-
-		n.setPreorderNext(n.firstChild());
-		for(int i = 0; i < n.numberChildren()-1; i++) {
-			//n.getChild(i).rightmostLeaf.preorderNext = n.getChild(i+1);
-			n.getChild(i).getRightmostLeaf().setPreorderNext(n.getChild(i+1));
+		for (int k = internal.size()-1; k >= 0; k--) {
+			TreeNode node = internal.get(k);
+			node.setPreorderNext(node.firstChild());
+			for(int i = 0; i < node.numberChildren()-1; i++) {
+				node.getChild(i).getRightmostLeaf().setPreorderNext(node.getChild(i+1));
+			}
+			node.getRightmostLeaf().setPreorderNext(null);
 		}
-		//n.rightmostLeaf.preorderNext = null;
-		n.getRightmostLeaf().setPreorderNext(null);
 	}
 
 	/**
 	 * 
 	 * Links leaves of the tree in pre-order,
 	 * check to see whether leaves have distinct names.
-	 * If leaves have the same name, add a suffix index separated by " "
+	 * If leaves have the same name, add a suffix index separated by " ".
+	 * Names are compared with a {@link Collator}. Equal names are found by hashing their collation keys,
+	 * so the leaves are not sorted. The keys of leaves with a taxon id are created once per run by the taxon table. Duplicates are renamed as if the leaves were sorted by name (stable sort):
+	 * each group of equal names is numbered 0, 1, ... in preorder, except the last leaf of the greatest name.
 	 *
 	 * @see     #linkNodesInPreorder()
 	 * @see     TreeNode
-	 * @see     NameComparator
-	 * @param jpb Progress bar.
 	 */
 	private void linkLeaves() {
-		int counter = 0;
-		int percentage = 0;
-		TreeNode pren = root.getLeftmostLeaf();
-		Vector leaves = new Vector<TreeNode>();
-		leaves.add(pren);
-//		pren.lindex = 0;
-		for(TreeNode n = pren.getPreorderNext(); n!=null; n=n.getPreorderNext())
+		ArrayList<TreeNode> leaves = new ArrayList<TreeNode>();
+		for(TreeNode n = root.getLeftmostLeaf(); n!=null; n=n.getPreorderNext())
 		{
-			counter++;
 			if(n.isLeaf())
 			{
 				leaves.add(n);
@@ -306,31 +321,40 @@ public class Tree {
 		}
 		numLeaves = leaves.size();
 
-		NameComparator myNameComparator = new NameComparator();
-		TreeNode[] sortedLeafArray = (TreeNode[])leaves.toArray(new TreeNode[leaves.size()]);
-		Arrays.sort(sortedLeafArray, myNameComparator);
-		int index = 0;
-		TreeNode curr = sortedLeafArray[0];
-		TreeNode next;
-		for(int i=0; i<leaves.size()-1; i++){
-			next = sortedLeafArray[i+1]; // only 1 index lookup per iteration
-			boolean compare = myNameComparator.compare(curr, next) == 0; 
-			if (compare || index > 0)
-			{
+		Collator collator = null;
+		//leaves with the same name, in preorder
+		HashMap<CollationKey, ArrayList<TreeNode>> byName = new HashMap<CollationKey, ArrayList<TreeNode>>();
+		ArrayList<ArrayList<TreeNode>> duplicates = new ArrayList<ArrayList<TreeNode>>();
+		CollationKey greatest = null;
+		for (TreeNode leaf : leaves) {
+			CollationKey name;
+			if (taxa != null && leaf.getTaxonId() >= 0) {
+				name = taxa.getCollationKey(leaf.getTaxonId());
+			} else {
+				if (collator == null) collator = Collator.getInstance(Locale.US);
+				name = collator.getCollationKey(leaf.getName());
+			}
+			ArrayList<TreeNode> group = byName.get(name);
+			if (group == null) {
+				group = new ArrayList<TreeNode>(1);
+				byName.put(name, group);
+			} else if (group.size() == 1) {
+				duplicates.add(group);
+			}
+			group.add(leaf);
+			if (greatest == null || name.compareTo(greatest) > 0) {
+				greatest = name;
+			}
+		}
+		ArrayList<TreeNode> last = (greatest == null) ? null : byName.get(greatest);
+		for (ArrayList<TreeNode> group : duplicates) {
+			int size = (group == last) ? group.size()-1 : group.size();
+			for (int index = 0; index < size; index++) {
+				TreeNode curr = group.get(index);
 				String name = curr.getName();
-				nodesByName.remove(curr); // before all nodes with
-				// same name were being ignored in search and comparing two identically named
-				// leaves was broken, much fewer differences in trees with many leaves that
-				// have the same name (imagine: all index.html occurences being marked as
-				// different since numbering convention doesn't string match the original node name)
-				curr.setName(name+ " " + index); //sb.toString());
-				nodesByName.put(name+ " " + index, curr);//sortedLeafArray[i].getName(), sortedLeafArray[i]); // add the node back with number convention
-				if (!compare)
-					index = 0;
-				else
-					index++;
+				curr.setName(name+ " " + index);
+				nodesByName.put(name+ " " + index, curr); // add the node back with number convention
 			}
-			curr = next;
 		}
 	}
 
@@ -378,18 +402,19 @@ public class Tree {
      * Added by Hui-Jie
 	 */
 	public void setNodeNum() {
+		nodesByNodeNum = new TreeNode[nodes.size()];
 		int index = 0;
 		for (int i = 0; i < nodes.size(); i++) {
 			if(nodes.get(i).isLeaf()) {
 				nodes.get(i).setNodeNum(index);
-				nodesByNodeNum.put(index, nodes.get(i));
+				nodesByNodeNum[index] = nodes.get(i);
 				index++;
 			}
 		}
 		for (int j = (nodes.size()-1); j >= 0; j--) {
 			if(!nodes.get(j).isLeaf()) {
 				nodes.get(j).setNodeNum(index);
-				nodesByNodeNum.put(index, nodes.get(j));
+				nodesByNodeNum[index] = nodes.get(j);
 				index++;
 			}
 		}			
@@ -399,6 +424,7 @@ public class Tree {
 	 * Remove the node which is the most recent common ancestor of the taxa given.
 	 * Note: this node is the child of the `root' of the unrooted tree. (root has degree 3) 
 	 * Also remove all the nodes above this node.
+	 * Runs in time linear in the number of nodes, so it can be used on trees with many taxa.
      * Added by Hui-Jie
 	 * @param taxa names of the taxa to be removed 
 	 */
@@ -420,46 +446,101 @@ public class Tree {
 					if(root.getChild(index).getRightmostLeaf().getName().equals(taxa[i])) find = true;
 				}
 			}
-			switch(index) {
-			case 0: //outgroup is the first child
-				root.setPreorderNext(root.getChild(1));
-				break;
-			case 1: //outgroup is the second child
-				root.getChild(0).getRightmostLeaf().setPreorderNext(root.getChild(2));
-				root.getChild(0).setPostorderNext(root.getChild(2).getLeftmostLeaf());
-				break;
-			case 2: //outgroup is the third child
-				root.getChild(1).getRightmostLeaf().setPreorderNext(null);
-				root.getChild(1).setPostorderNext(root);
-				break;
-			default: //error in the outgroup file. do nothing
-				break;
+			removeRootChild(index, taxa.length);
+		}
+	}
+	
+	/**
+	 * Remove the outgroup, as {@link #removeOutgroup(String[])}, given as a set of taxon ids.
+	 * Each leaf is tested with a bit lookup of its id instead of comparing names.
+	 * @param taxa ids of the taxa to be removed in the taxon table of the run
+	 */
+	public void removeOutgroup(BitSet taxa) {
+		if (root.numberChildren() != 3) {
+			System.out.println("Input tree is not an unrooted tree.");
+			System.out.println("Cannot root the tree by an outgroup");
+		} else { //root has three children, one of them is the outgroup and should be remove
+			int index = -1; //use to find the index of the outgroup
+			boolean find = false; //find the outgroup or not
+			while (!find) {
+				index++;
+				if (index >= 3) {
+					System.out.println("Error in the outgroup file. Please check again.");
+					break;
+				}
+				find = isTaxon(root.getChild(index).getLeftmostLeaf(), taxa) || isTaxon(root.getChild(index).getRightmostLeaf(), taxa);
 			}
-			
-			removeNodes(root.getChild(index));
-			root.removeChild(root.getChild(index));
-			root.setNumberLeaves();
-			root.setExtremeLeaves();
-			numLeaves = numLeaves - taxa.length;
-			nodesByNodeNum = new HashMap<Integer, TreeNode>();
-			setNodeNum();
+			removeRootChild(index, taxa.cardinality());
+		}
+	}
+	
+	/**
+	 * Check whether a leaf is in a set of taxa
+	 * @param leaf
+	 * @param taxa ids of the taxa
+	 * @return true if the id of the leaf is in the set
+	 */
+	private static boolean isTaxon(TreeNode leaf, BitSet taxa) {
+		return leaf.getTaxonId() >= 0 && taxa.get(leaf.getTaxonId());
+	}
+	
+	/**
+	 * Remove a child of the root with the subtree under it, and renumber the nodes
+	 * @param index index of the child
+	 * @param numTaxa number of leaves removed
+	 */
+	private void removeRootChild(int index, int numTaxa) {
+		switch(index) {
+		case 0: //outgroup is the first child
+			root.setPreorderNext(root.getChild(1));
+			break;
+		case 1: //outgroup is the second child
+			root.getChild(0).getRightmostLeaf().setPreorderNext(root.getChild(2));
+			root.getChild(0).setPostorderNext(root.getChild(2).getLeftmostLeaf());
+			break;
+		case 2: //outgroup is the third child
+			root.getChild(1).getRightmostLeaf().setPreorderNext(null);
+			root.getChild(1).setPostorderNext(root);
+			break;
+		default: //error in the outgroup file. do nothing
+			break;
 		}
+		
+		removeNodes(root.getChild(index));
+		root.removeChild(root.getChild(index));
+		root.setNumberLeaves();
+		root.setExtremeLeaves();
+		numLeaves = numLeaves - numTaxa;
+		setNodeNum();
 	}
 	
 	/**
-	 * Recursively remove nodes from the tree
+	 * Remove a subtree from the tree in linear time: the subtree is traversed with an explicit stack,
+	 * and the remaining nodes are kept in one pass over {@link #nodes}.
      * Added by Hui-Jie
 	 * @param base any nodes above the base will be removed.
 	 */
 	private void removeNodes(TreeNode base) {
-		if (base.isLeaf()) {
-			nodesByName.remove(base.getName());
-			nodes.remove(base);
-		} else { //no name for internal node
-			removeNodes(base.firstChild());
-			removeNodes(base.lastChild());
-			nodes.remove(base);
+		Set<TreeNode> removed = Collections.newSetFromMap(new IdentityHashMap<TreeNode, Boolean>());
+		ArrayDeque<TreeNode> stack = new ArrayDeque<TreeNode>();
+		stack.push(base);
+		while (!stack.isEmpty()) {
+			TreeNode node = stack.pop();
+			removed.add(node);
+			if (node.isLeaf()) {
+				nodesByName.remove(node.getName());
+			}
+			for (int i = 0; i < node.numberChildren(); i++) {
+				stack.push(node.getChild(i));
+			}
+		}
+		ArrayList<TreeNode> kept = new ArrayList<TreeNode>(nodes.size() - removed.size());
+		for (TreeNode node : nodes) {
+			if (!removed.contains(node)) {
+				kept.add(node);
+			}
 		}
+		nodes = kept;
 	}
 	
 	
@@ -534,22 +615,17 @@ public class Tree {
 		}
 		return prop;
 	}
- 
 	
-}
-
-/** Comparator class for Strings */
-class NameComparator implements Comparator{
-	/** collator object used for string comparison. */
-	Collator myCollator = Collator.getInstance(Locale.US);
-
-	/** String comparator, uses {@link Collator} comparator. */
-	public int compare(Object o1, Object o2){
-		String s1 = ((TreeNode)o1).getName();
-		String s2 = ((TreeNode)o2).getName();
-		return myCollator.compare(s1, s2);
+	/**
+	 * Return the mapping stored in this tree as arrays indexed by nodeNum:
+	 * parent of each node, branch lengths, and the substitution events of all branches in one flat array
+	 * with the offset of each branch. Branch-wise loops over the mapping do not follow node pointers.
+	 * The mapping is a copy, later changes of the tree are not reflected.
+	 * @return mapping of the tree
+	 */
+	public SiteMapping getMapping() {
+		return new SiteMapping(this);
 	}
-
+ 
+	
 }
-
-
@@ -89,19 +89,31 @@ public class TreeNode {
 	/** The next postorder node. */
 	private TreeNode posorderNext = null;
 	
-	/** Store the state (ACTG  or codon state) of the node */
-	private String state = null;
+	/** Store the state (nucleotide code, see {@link Nucleotide}) of the node, -1 if not set */
+	private byte state = -1;
 	
 	/** Store the time to parent node */
 	private double time;
 
 	public String label;
 	
-	/** Store the state path to its parent node*/
-	public ArrayList<String> pathState; 
+	/** Id of the taxon name as written in the file (see {@link TaxonTable}), -1 for internal nodes or if unknown */
+	private int taxonId = -1;
 	
-	/** Store the time path to its parent node */
-	public ArrayList<Double> pathTime;
+	/**
+	 * Store the state path to its parent node (nucleotide codes).
+	 * Filled from the node towards the parent while parsing, in forward order after {@link #finishPath()}.
+	 */
+	private byte[] pathState; 
+	
+	/** Store the time path to its parent node, in the same order as {@link #pathState} */
+	private double[] pathTime;
+	
+	/** Number of path states */
+	private int pathStateSize;
+	
+	/** Number of path times */
+	private int pathTimeSize;
 
 	/**
 	 * Default tree node constructor.
@@ -111,8 +123,8 @@ public class TreeNode {
 	 */
 	public TreeNode() {
 		children = new ArrayList<TreeNode>();
-		pathState = new ArrayList<String>();
-		pathTime = new ArrayList<Double>(); 
+		pathState = new byte[2];
+		pathTime = new double[2]; 
 	}
 	
 	/**
@@ -123,6 +135,22 @@ public class TreeNode {
 		name = s;
 	}
 
+	/**
+	 * Set the id of the taxon name of this leaf
+	 * @param taxonId id in the taxon table of the run
+	 */
+	public void setTaxonId(int taxonId) {
+		this.taxonId = taxonId;
+	}
+	
+	/**
+	 * Return the id of the taxon name of this leaf, as written in the file (before duplicates are renamed)
+	 * @return id in the taxon table of the run, -1 for internal nodes or if unknown
+	 */
+	public int getTaxonId() {
+		return taxonId;
+	}
+
 	/**
 	 * Get the number of children under this node.
 	 * @return Number of nodes stored in the children array {@link #children}.
@@ -359,17 +387,29 @@ public class TreeNode {
     /**
      *  Set the state of the node
      *  Add by Hui-Jie
-     * @param String state
+     * @param String state G, C, T or A
      */
     public void setState(String state) {
-    	this.state = state;
+    	if (state.length() != 1) {
+    		throw new IllegalArgumentException("Unknown nucleotide state: " + state);
+    	}
+    	this.state = (byte) Nucleotide.code(state.charAt(0));
     }
     
     /**
      *  Return the state of the node
      *  Add by Hui-Jie
+     *  @return G, C, T or A, null if not set
      */
     public String getState() {
+    	return (state < 0) ? null : Nucleotide.name(state);
+    }
+    
+    /**
+     *  Return the state of the node
+     *  @return nucleotide code, -1 if not set
+     */
+    public byte getStateCode() {
     	return state;
     }
     
@@ -392,12 +432,15 @@ public class TreeNode {
     
     
     /**
-     *  Add path state
+     *  Add path state. Path states are added from the node towards the parent, as in the .map file.
      *  Add by Hui-Jie
-     * @param state
+     * @param state G, C, T or A
      */
     public void addPathState(String state) {
-    	pathState.add(state);
+    	if (pathStateSize == pathState.length) {
+    		pathState = Arrays.copyOf(pathState, 2 * pathStateSize);
+    	}
+    	pathState[pathStateSize++] = (byte) Nucleotide.code(state.charAt(0));
     }
     
     /**
@@ -406,7 +449,7 @@ public class TreeNode {
      *  @return size
      */
     public int getPathStateSize() {
-    	return pathState.size();
+    	return pathStateSize;
     }
     
     
@@ -416,45 +459,90 @@ public class TreeNode {
      *  @return size
      */
     public int getPathTimeSize() {
-    	return pathTime.size();
+    	return pathTimeSize;
     }
     
     /**
-     *  Add path time
+     *  Add path time. Path times are added from the node towards the parent, as in the .map file.
      *  Add by Hui-Jie
      *  @param time
      */
     public void addPathTime(double time) {
-    	pathTime.add(time);
+    	if (pathTimeSize == pathTime.length) {
+    		pathTime = Arrays.copyOf(pathTime, 2 * pathTimeSize);
+    	}
+    	pathTime[pathTimeSize++] = time;
+    }
+    
+    /**
+     *  Put the path in forward order (from the parent to this node) once the node is parsed.
+     *  Called once by the parser for each node.
+     */
+    public void finishPath() {
+    	for (int lo = 0, hi = pathStateSize - 1; lo < hi; lo++, hi--) {
+    		byte s = pathState[lo];
+    		pathState[lo] = pathState[hi];
+    		pathState[hi] = s;
+    	}
+    	for (int lo = 0, hi = pathTimeSize - 1; lo < hi; lo++, hi--) {
+    		double t = pathTime[lo];
+    		pathTime[lo] = pathTime[hi];
+    		pathTime[hi] = t;
+    	}
+    }
+    
+    /**
+     *  Return a path state, in forward order
+     *  @param k index of the substitution event, from the parent to this node
+     *  @return state entered by the event (nucleotide code)
+     */
+    public byte getPathStateCode(int k) {
+    	return pathState[k];
+    }
+    
+    /**
+     *  Return a path time, in forward order
+     *  @param k index of the substitution event, from the parent to this node
+     *  @return time from the previous event (or the parent) to the event
+     */
+    public double getPathTime(int k) {
+    	return pathTime[k];
     }
 
     /**
      *  Return the whole path of state changes starting from the parent state to the state of this node.
+     *  The list is a read-only view of the path.
      *  Add by Hui-Jie
      *  @return state path
      */
-    public ArrayList<String> getPathState() {
-    	ArrayList<String> states = new ArrayList<String>();
-    	states.add(this.parent.getState());
-    	Collections.reverse(pathState);
-    	states.addAll(pathState);
-    	Collections.reverse(pathState);
-    	states.add(state);
-    	return states;
+    public List<String> getPathState() {
+    	return new AbstractList<String>() {
+    		public String get(int i) {
+    			if (i == 0) return parent.getState();
+    			if (i == pathStateSize + 1) return getState();
+    			return Nucleotide.name(pathState[i-1]);
+    		}
+    		public int size() {
+    			return pathStateSize + 2;
+    		}
+    	};
     }
     
     /**
      *  Return the whole path of times starting from the parent state to the current node.
+     *  The list is a read-only view of the path.
      *  Add by Hui-Jie
      *  @return time path
      */
-    public ArrayList<Double> getPathTime() {
-    	ArrayList<Double> times = new ArrayList<Double>();
-    	Collections.reverse(pathTime);
-    	times.addAll(pathTime);
-    	Collections.reverse(pathTime);
-    	times.add(time);
-    	return times;
+    public List<Double> getPathTime() {
+    	return new AbstractList<Double>() {
+    		public Double get(int i) {
+    			return (i == pathTimeSize) ? time : pathTime[i];
+    		}
+    		public int size() {
+    			return pathTimeSize + 1;
+    		}
+    	};
     }
     
     /**
@@ -483,23 +571,18 @@ public class TreeNode {
      *  @return number of state changes
      */
     public int getNumberOfChanges(String from, String to) {
-    		String start = parent.getState();
-    		String end = null;
+    		int fromCode = Nucleotide.code(from.charAt(0));
+    		int toCode = Nucleotide.code(to.charAt(0));
+    		int start = parent.getStateCode();
     		int count = 0;
     		
-    		if(pathState.size()==0) {
-    			if(start.equals(from) && getState().equals(to)) 
-    				count = 1;
-    		} else {
-    			for (int i = pathState.size() - 1; i >= 0; i--) {
-        			end = pathState.get(i);
-        			if (start.equals(from) && end.equals(to)) {
-        				count ++;
-        			}
-        			start = pathState.get(i);
-        		}   	
-    			if(start.equals(from) && getState().equals(to)) count++;
-    		}
+    		for (int i = 0; i < pathStateSize; i++) {
+    			if (start == fromCode && pathState[i] == toCode) {
+    				count ++;
+    			}
+    			start = pathState[i];
+    		}   	
+    		if(start == fromCode && state == toCode) count++;
     	return count;
     }
     
@@ -511,19 +594,18 @@ public class TreeNode {
      *  @return time duration of that state type
      */
     public double getTimeOfState(String type) {
+    	int typeCode = Nucleotide.code(type.charAt(0));
     	double timeState = 0;
-    	String start = parent.getState();
-    	//if no path for this node, pathState.size() = 0, skip for loop
-    	if (pathState.size() > 0) {
-    		for (int i = (pathState.size()-1); i>= 0; i--) {
-        		if (start.equals(type)) {
-        			timeState += pathTime.get(i);
-        		}
-        		start = pathState.get(i);
-        	}
+    	int start = parent.getStateCode();
+    	//if no path for this node, pathStateSize = 0, skip for loop
+    	for (int i = 0; i < pathStateSize; i++) {
+    		if (start == typeCode) {
+    			timeState += pathTime[i];
+    		}
+    		start = pathState[i];
     	}
     	
-    	if(start.equals(type)) {
+    	if(start == typeCode) {
     		timeState += getTime();
     	}
     	
@@ -532,17 +614,15 @@ public class TreeNode {
     
     /**
      *  Calculate the branch length (time) of the branch ending with this node.
-     *  Sum all path time.
+     *  Sum all path time, from this node towards the parent as in the .map file.
      *  Add by Hui-Jie
      *  @return branch length
      */
     public double getBranchLength() {
     	double br = time;
-    	if(pathState.size() != 0) {
-    		for (int i = 0; i < pathState.size(); i++) {
-    			br += pathTime.get(i);
-    		}
-    	} 
+    	for (int i = pathTimeSize - 1; i >= 0; i--) {
+    		br += pathTime[i];
+    	}
     	return br;
     }
     
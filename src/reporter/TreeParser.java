@@ -17,7 +17,8 @@ public class TreeParser {
 	/** Line (and tree information) termination. */
 	private static final char lineTerminator = ';';
 	
-	private StreamTokenizer tokenizer;
+	/** Scanner over the bytes of the line being parsed */
+	private MappingScanner scanner;
     /**
      * Root node of the tree being parsed.  Must be initialized outside the tokenizer.
      */
@@ -33,53 +34,168 @@ public class TreeParser {
      */
     private String[] outgroup;
     
+    /**
+     * Taxon names of the run, shared by all sessions
+     */
+    private TaxonTable taxa;
+    
+    /**
+     * Ids of the taxa in the outgroup, null if there is no outgroup
+     */
+    private BitSet outgroupIds;
+    
+    /**
+     * Nodes in the order they are completed by the parser, recorded while building a topology template
+     */
+    private ArrayList<TreeNode> popOrder;
+    
+    /**
+     * Parent of each node of {@link #popOrder} when it is completed (null for the root)
+     */
+    private ArrayList<TreeNode> popParent;
+    
+    /**
+     * Number of children of the nodes being parsed by {@link #parseMapping(byte[], int)}, from the root to the current node
+     */
+    private int[] pendingChildren;
+    
+    /**
+     * Completion index of the nodes completed by {@link #parseMapping(byte[], int)} whose parent is not completed yet
+     */
+    private int[] done;
+    
+    /**
+     * Topology shared by all trees of the run, null until {@link #tokenizeTemplate(byte[], int)} is called
+     */
+    private TopologyTemplate template;
+    
+    /**
+     * Cache of parsed mapping lines shared by all sessions of the run, null if lines are always parsed
+     */
+    private MappingCache cache;
+    
     
     /**
      * Constructor
-     * Initializes parsing of a tree by creating a tokenizer and setting default
-     * properties (such as spacing, quoting characters). 
+     * Initializes parsing of a tree by copying the characters of the reader into
+     * the byte buffer of the scanner.
      *
      * Modified by Hui-Jie
      *
-     * @param bufferedReader Buffered reader that could start in the middle of a nexus file or
-     * the start of a newick file (basically the beginning of a newick tree, is run
-     * for each tree in a nexus file)
+     * @param b reader that holds a single newick tree (one line of a .map file)
      * @param outgroupFileName a string storing the outgroup species name
      */
     public TreeParser(StringReader b, String outgroupFileName)
     {
-        tokenizer = new StreamTokenizer(b);
-        tokenizer.eolIsSignificant(false); //Determines whether or not ends of line are treated as tokens.
-        // Specifies that matching pairs of this character delimit string constants in this tokenizer.
-        tokenizer.quoteChar('"'); //
-//        tokenizer.quoteChar('\''); // TODO: check quote layering, quoted quotes
-        
-        //wordChar(,);
-        //Specifies that all characters c in the range low <= c <= high are word constituents.
-        tokenizer.wordChars('\'', '\''); // quote problem, turn this into a prime symbol?
-        // 32 = space
-        tokenizer.wordChars('!', '!'); // 33
-        // 34 = "
-        tokenizer.wordChars('#', '&'); // 35-38
-        // 39-41 = '() newick
-        tokenizer.wordChars('*', '+'); // 42-43
-        // 44 = , newick
-        tokenizer.wordChars('-', '/'); // 45-47
-        // 48-59 = [0-9]:;
-        tokenizer.wordChars('<', '<'); // 60
-        // 61 = = nexus
-        tokenizer.wordChars('>', '@'); // 62-64
-        // 65-90 = [A-Z]
-//        tokenizer.wordChars('[', '['); // 91 [ nexus comment character, treat as char
-        // 92 = \ (esc, support esc'd spaces)
-//      93 = ] nexus comment character
-        tokenizer.wordChars('^', '^'); // 94
-        // 95 = _ (underscore)
-        tokenizer.wordChars('`', '`'); // 96
-        // 97-122 = [a-z]
-        tokenizer.wordChars('{', '~'); // 123-126
-        // 127 = del
-        
+        this(outgroupFileName);
+        setInput(b);
+    }
+    
+    /**
+     * Constructor
+     * Parse the tree directly from a byte buffer, e.g. the reusable buffer of a {@link LineReader}. 
+     * The buffer is not copied.
+     * @param buf buffer holding one line of a .map file as ASCII
+     * @param length length of the line
+     * @param outgroupFileName a string storing the outgroup species name
+     */
+    public TreeParser(byte[] buf, int length, String outgroupFileName)
+    {
+        this(outgroupFileName);
+        setInput(buf, length);
+    }
+    
+    /**
+     * Constructor for a parser session.
+     * The outgroup file is read once here, and the same parser is then pointed at successive 
+     * lines with {@link #setInput(byte[], int)} or {@link #tokenize(byte[], int)}.
+     * @param outgroupFileName a string storing the outgroup species name
+     */
+    public TreeParser(String outgroupFileName)
+    {
+        scanner = new MappingScanner();
+        taxa = new TaxonTable();
+        readOutgroup(outgroupFileName);
+        outgroupIds = (outgroup == null) ? null : taxa.idsOf(outgroup);
+    }
+    
+    /**
+     * Constructor for a parser session that parses the same run in another thread.
+     * The outgroup, the taxon names and the topology template of the given session are shared 
+     * (the taxon table is synchronized, the others are read only once built), and the new session 
+     * has its own scanner.
+     * @param session parser session of the run
+     */
+    public TreeParser(TreeParser session)
+    {
+        scanner = new MappingScanner();
+        outgroupNum = session.outgroupNum;
+        outgroup = session.outgroup;
+        taxa = session.taxa;
+        outgroupIds = session.outgroupIds;
+        template = session.template;
+        cache = session.cache;
+    }
+    
+    /**
+     * Set the outgroup instead of reading it from a file
+     * @param taxa names of the taxa of the outgroup, empty if there is no outgroup
+     */
+    public void setOutgroup(String[] taxa)
+    {
+        outgroupNum = taxa.length;
+        outgroup = (taxa.length == 0) ? null : taxa.clone();
+        outgroupIds = (outgroup == null) ? null : this.taxa.idsOf(outgroup);
+    }
+    
+    /**
+     * Return the taxon names of the run
+     * @return taxon table, shared by all sessions
+     */
+    public TaxonTable getTaxa()
+    {
+        return taxa;
+    }
+    
+    /**
+     * Point the parser to the next line to be parsed. The buffer is not copied.
+     * @param buf buffer holding one line of a .map file as ASCII
+     * @param length length of the line
+     */
+    public void setInput(byte[] buf, int length)
+    {
+        scanner.reset(buf, 0, length);
+    }
+    
+    /**
+     * Point the parser to the next tree to be parsed.
+     * @param b reader that holds a single newick tree (one line of a .map file)
+     */
+    public void setInput(Reader b)
+    {
+        byte[] buf = readAll(b);
+        scanner.reset(buf, 0, buf.length);
+    }
+    
+    /**
+     * Parse the tree held in a byte buffer.
+     * @param buf buffer holding one line of a .map file as ASCII
+     * @param length length of the line
+     * @return Tree parsed from the buffer.
+     */
+    public Tree tokenize(byte[] buf, int length)
+    {
+        setInput(buf, length);
+        return tokenize();
+    }
+    
+    /**
+     * Read the outgroup file. 
+     * First line contains the number of taxa in the outgroup, followed by one taxon per line.
+     * @param outgroupFileName name of the outgroup file, "" if there is no outgroup
+     */
+    private void readOutgroup(String outgroupFileName)
+    {
         if (!outgroupFileName.equals("")) {
         	//outgroup file
             /*
@@ -141,6 +257,29 @@ public class TreeParser {
     }
 
 
+    /**
+     * Copy the characters of a reader into a byte array. Mapping lines are ASCII.
+     * @param b reader
+     * @return bytes
+     */
+    private static byte[] readAll(Reader b)
+    {
+        byte[] buf = new byte[1024];
+        int length = 0;
+        try {
+            int c;
+            while ((c = b.read()) != -1) {
+                if (length == buf.length) {
+                    buf = Arrays.copyOf(buf, 2 * length);
+                }
+                buf[length++] = (byte) c;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return Arrays.copyOf(buf, length);
+    }
+    
 	/**
      * Adds node at the top of the stack to the tree.  TreeNode is already created based
      * on Newick properties.
@@ -149,9 +288,9 @@ public class TreeParser {
      * they have names and all children are processed.
      * @return Newly added treeNode linked into the tree. 
      */
-    private TreeNode popAndName(String name, Stack nodeStack)
+    private TreeNode popAndName(String name, ArrayDeque<TreeNode> nodeStack)
     {
-	    TreeNode topNode = (TreeNode)nodeStack.pop();
+	    TreeNode topNode = nodeStack.pop();
 	    if (name == null)
 	    {
 	    	topNode.label = "";
@@ -162,26 +301,29 @@ public class TreeParser {
 	    	topNode.label = name;
 	    	topNode.setName(name);
 	    }
-	    try //causing troubles when its parent is a pseudo node
+	    TreeNode parent = nodeStack.peek(); //causing troubles when its parent is a pseudo node
+	    if (parent != null)
 	    {
-	    	TreeNode parent = (TreeNode) nodeStack.peek();
 	    	parent.addChild(topNode);
 	    }
-	    catch (EmptyStackException e)
+	    else if (topNode != rootNode)
 	    {
-	        if (topNode != rootNode)
-	            System.out.println("Parser error on node " + topNode);
+	        System.out.println("Parser error on node " + topNode);
 	    }
 	    topNode.setExtremeLeaves(); // sets leftmost and rightmost leaf, non-recursive
 	    topNode.setNumberLeaves(); // sets number of leaves, non-recursive
 	    topNode.linkNodesInPreorder();
 	    topNode.linkNodesInPostorder();
+	    if (popOrder != null) {
+	    	popOrder.add(topNode);
+	    	popParent.add(parent);
+	    }
 	    return topNode;
     }
 
     /**
      * PhyloBayes output tree tokenizer: converts a string (tree as a string) into a tree object.
-     * The stream tokenizer should be initialized before calling this function.
+     * The scanner should be initialized before calling this function.
      *
      * Modified by Hui-Jie
      *
@@ -190,14 +332,12 @@ public class TreeParser {
     public Tree tokenize()
     {
         final char openBracket = '(', closeBracket = ')', childSeparator = ',',
-        	treeTerminator = lineTerminator, quote = '\'', doubleQuote = '"', 
-        	infoSeparator = ':', stateSeparator = '_';
-        //int progress = 0;
+        	treeTerminator = lineTerminator, infoSeparator = ':', stateSeparator = '_';
         rootNode = new TreeNode();
         Tree t = new Tree();
         t.setRootNode(rootNode);
-        //t.setFileName(streamName);
-        Stack<TreeNode> nodeStack = new Stack<TreeNode>();
+        t.setTaxa(taxa);
+        ArrayDeque<TreeNode> nodeStack = new ArrayDeque<TreeNode>();
         nodeStack.push(rootNode);
         int thisToken;
         TreeNode lastNamed = null;
@@ -205,11 +345,9 @@ public class TreeParser {
         boolean nameNext = true;
         boolean stateNext = false;
         boolean isTrueNode = true; //whether lastNamed is a true node or a pseudo node
-        int index = 0; //use to index nodes        
-	try {
-            while (EOT == false &&
-                    (thisToken = tokenizer.nextToken()) != StreamTokenizer.TT_EOF)
-            {
+        while (EOT == false &&
+                (thisToken = scanner.nextToken()) != MappingScanner.TT_EOF)
+        {
             switch (thisToken)
             {
                 case stateSeparator:
@@ -220,59 +358,33 @@ public class TreeParser {
                 	stateNext = true;
                 	isTrueNode = true;
                 	break;
-            	case StreamTokenizer.TT_WORD:
+            	case MappingScanner.TT_WORD:
             		if(nameNext) { //name next
-            			lastNamed = popAndName(tokenizer.sval, nodeStack);
+            			int id = scanner.wordId(taxa); //resolved without creating a String once the name is known
+            			lastNamed = popAndName(taxa.getName(id), nodeStack);
+            			lastNamed.setTaxonId(id);
             			nameNext = false;
-            			//stateNext = true;
             		} else if (stateNext && isTrueNode) { //state for true node
-            			lastNamed.setState(tokenizer.sval); //lastNamed is a true node, store state at lastNamed
+            			lastNamed.setState(scanner.word()); //lastNamed is a true node, store state at lastNamed
             		} else if (stateNext && !isTrueNode) { //state for pseudo node
-            			String tempState = tokenizer.sval;
+            			String tempState = scanner.word();
             			//check if it's redundant
-            			int tempToken = tokenizer.nextToken();
+            			int tempToken = scanner.nextToken();
             			if (tempToken != infoSeparator) { //redundant state
             				nameNext = true;
             				stateNext = false;
             			} else { 
-            				/*create pseudo node
-            				if (lastNamed != null) {
-            					System.err.println("Error: didn't expect last named node exist: " + tokenizer.sval);
-            				} else {
-            					TreeNode temp = new TreeNode();
-            					temp.setState(tempState);
-            					temp.setPseudo(true);
-            					nodeStack.push(temp);
-                				lastNamed = popAndName(null,nodeStack);
-            				}
-            				*/
             				lastNamed.addPathState(tempState);
             			}
             			//push back tempToken
-            			tokenizer.pushBack();
+            			scanner.pushBack();
             		} else {
-            			System.err.println("Error: didn't expect this name/state here: " + tokenizer.sval);
+            			System.err.println("Error: didn't expect this name/state here: " + scanner.word());
             		}
-            		
-            		/*
-            	    if (!nameNext)
-            	        System.err.println("Error: didn't expect this name here: " + tokenizer.sval);
-            	    lastNamed = popAndName(tokenizer.sval, nodeStack);
-            		//progress += tokenizer.sval.length();
-            		nameNext = false;
-            		*/
             		break;
-            	case StreamTokenizer.TT_NUMBER:
-            		//check if it's in the form of `5e-05' instead of 0.00005
-            		double time = tokenizer.nval;
-            		int tempToken = tokenizer.nextToken();
-            		if (tempToken != infoSeparator) { //`e-05' is a token
-            			String temp = time + tokenizer.sval;             			
-            			time = Double.parseDouble(temp);
-            		} else {
-            			tokenizer.pushBack();
-            		}
-            		            		
+            	case MappingScanner.TT_NUMBER:
+            		//numbers in the form of `5e-05' are read as a single token by the scanner
+            		double time = scanner.number();
             		if (lastNamed != null) {
             			if(lastNamed.getPathStateSize() == 0){
             				lastNamed.setTime(time);
@@ -282,64 +394,29 @@ public class TreeParser {
             		} else {
             			System.err.println("Error: can't set value " + time + " to a null node");
             		}
-            		//lastNamed = null;
             		nameNext = false;
             		stateNext = true;
             		isTrueNode = false;
-            		/*
-            		if (nameNext) //name contains number
-            		    lastNamed = popAndName(tokenizer.sval, nodeStack);
-            		else //time to parent node
-            		{
-            		    if (lastNamed != null)
-            		        lastNamed.setTime(tokenizer.nval);
-            		    else
-            		        System.err.println("Error: can't set value " + tokenizer.nval + " to a null node");
-            		    lastNamed = null;
-            		}
-            		//progress += (new Double(tokenizer.nval).toString()).length();
-            		nameNext = false;
-            		*/
             		break;
             	case infoSeparator:
-            		/*
-            	    if (nameNext)
-            	        lastNamed = popAndName(null, nodeStack);
-            	    //progress += 1;
-            	    */
             		nameNext = false;
             		stateNext = true;
             	    break;
             	case treeTerminator:
-            	case StreamTokenizer.TT_EOF:
             		if (nameNext)
             	        lastNamed = popAndName(null, nodeStack);
             	    EOT = true;
-            	    //progress += 1;
             	    nameNext = false;
             	    break;
             	case openBracket:
             	    nodeStack.push(new TreeNode());
-            	    //progress += 1;
             	    nameNext = true;
             	    stateNext = false;
-            	    //isTrueNode = true;
             	    break;
             	case closeBracket:
-            	    /*
-            	     if (nameNext)
-            	        lastNamed = popAndName(null, nodeStack);
-            	    //progress += 1;
-            	     */
             		nameNext = true;
             	    break;
             	case childSeparator:
-            		/*
-            	    if (nameNext)
-            	        lastNamed = popAndName(null, nodeStack);
-            	    nodeStack.push(new TreeNode());
-            	    //progress += 1;
-            	    */
             		nodeStack.push(new TreeNode());
             		nameNext = true;
             		stateNext = false;
@@ -349,22 +426,275 @@ public class TreeParser {
             		break;
             }
         }
-        }
-        catch (IOException e) {
-        }
         if (!nodeStack.isEmpty())
             System.err.println("Node stack still has " + nodeStack.size() + " things");
         t.postProcess();
+        for (TreeNode n = t.getRoot(); n != null; n = n.getPreorderNext()) {
+        	n.finishPath(); //paths were read from the nodes towards the parents
+        }
         t.setNodeNum(); //need to call it first to ensure `equals' works properly.
         //remove outgroup if t is an unrooted tree
         if(outgroupNum != 0 && t.getRoot().numberChildren() == 3) {
-        	t.removeOutgroup(outgroup);
+        	t.removeOutgroup(outgroupIds);
         	//t.setNodeNum();
         }
         
         return t;
     }
 
+    /**
+     * Parse the first tree of a run and freeze its topology.
+     * Later lines are then parsed with {@link #tokenizeMapping(byte[], int)}.
+     * @param buf buffer holding one line of a .map file as ASCII
+     * @param length length of the line
+     * @return topology template of the run
+     */
+    public TopologyTemplate tokenizeTemplate(byte[] buf, int length)
+    {
+        popOrder = new ArrayList<TreeNode>();
+        popParent = new ArrayList<TreeNode>();
+        Tree t = tokenize(buf, length);
+        //shape of the line as parsed, before the outgroup is removed
+        IdentityHashMap<TreeNode, Integer> popIndex = new IdentityHashMap<TreeNode, Integer>();
+        for (int k = 0; k < popOrder.size(); k++) {
+        	popIndex.put(popOrder.get(k), k);
+        }
+        int[] childCount = new int[popOrder.size()];
+        int[] parentPop = new int[popOrder.size()];
+        for (int k = 0; k < popOrder.size(); k++) {
+        	childCount[k] = 0;
+        	parentPop[k] = (popParent.get(k) == null) ? -1 : popIndex.get(popParent.get(k));
+        }
+        for (int k = 0; k < popOrder.size(); k++) {
+        	if (parentPop[k] >= 0) childCount[parentPop[k]]++;
+        }
+        template = new TopologyTemplate(t, popOrder, childCount, parentPop);
+        popOrder = null;
+        popParent = null;
+        return template;
+    }
+    
+    /**
+     * Return the topology template of the run
+     * @return template, null if {@link #tokenizeTemplate(byte[], int)} has not been called
+     */
+    public TopologyTemplate getTemplate()
+    {
+        return template;
+    }
+    
+    /**
+     * Set the cache of parsed mapping lines. Sessions created afterwards from this one share the cache.
+     * @param cache null to parse every line
+     */
+    public void setCache(MappingCache cache)
+    {
+        this.cache = cache;
+    }
+    
+    /**
+     * Return the cache of parsed mapping lines
+     * @return cache, null if every line is parsed
+     */
+    public MappingCache getCache()
+    {
+        return cache;
+    }
+    
+    /**
+     * Parse a line that has the same topology as the template, or find it in the cache of parsed lines.
+     * The returned mapping must not be modified, it may be shared with other iterations.
+     * @param buf buffer holding one line of a .map file as ASCII
+     * @param length length of the line
+     * @return mapping of the line
+     * @throws IOException if the line does not have the topology of the first tree
+     */
+    public SiteMapping tokenizeMapping(byte[] buf, int length) throws IOException
+    {
+        if (cache == null) {
+            return parseMapping(buf, length);
+        }
+        int hash = MappingCache.hash(buf, length);
+        SiteMapping m = cache.get(buf, length, hash);
+        if (m == null) {
+            m = parseMapping(buf, length);
+            cache.put(buf, length, hash, m);
+        }
+        return m;
+    }
+    
+    /**
+     * Parse a line that has the same topology as the template straight into per-branch states and times.
+     * No TreeNode is created and the tree is not post processed, sorted or renumbered:
+     * the k-th node completed gets the k-th nodeNum of the template.
+     * Same state machine as {@link #tokenize()}.
+     * The shape of the line is checked against the template: leaf names, and the number of children and 
+     * the parent of each node in the order they are completed, so the nodeNums of the template are only 
+     * given to the same nodes.
+     * @param buf buffer holding one line of a .map file as ASCII
+     * @param length length of the line
+     * @return mapping of the line
+     * @throws IOException if the line does not have the topology of the first tree
+     */
+    private SiteMapping parseMapping(byte[] buf, int length) throws IOException
+    {
+        final char openBracket = '(', closeBracket = ')', childSeparator = ',',
+        	treeTerminator = lineTerminator, infoSeparator = ':', stateSeparator = '_';
+        setInput(buf, length);
+        SiteMapping m = template.newMapping();
+        int numParsed = template.getNumParsedNodes();
+        int pop = 0; //number of nodes completed
+        int last = -1; //nodeNum of the last completed node, -1 if removed with the outgroup
+        if (pendingChildren == null) {
+        	pendingChildren = new int[numParsed + 1];
+        	done = new int[numParsed + 1];
+        }
+        int pending = 0; //nodes being parsed, the root is the first one
+        int numDone = 0;
+        pendingChildren[pending++] = 0;
+        int thisToken;
+        boolean EOT = false; //end of tree
+        boolean nameNext = true;
+        boolean stateNext = false;
+        boolean isTrueNode = true;
+        while (EOT == false &&
+                (thisToken = scanner.nextToken()) != MappingScanner.TT_EOF)
+        {
+            switch (thisToken)
+            {
+                case stateSeparator:
+                	if (nameNext) { //internal node whose children have been processed
+                		if (pop == numParsed) {
+                			throw mismatch("it has more nodes");
+                		}
+                		numDone = checkNode(pop, --pending, numDone);
+                		last = template.getNodeNum(pop++);
+                		if (last >= 0) m.startNode(last);
+                	}
+                	nameNext = false;
+                	stateNext = true;
+                	isTrueNode = true;
+                	break;
+            	case MappingScanner.TT_WORD:
+            		if(nameNext) { //leaf
+            			if (pop == numParsed) {
+            				throw mismatch("it has more nodes");
+            			}
+            			if (!scanner.wordEquals(template.getName(pop))) {
+            				throw mismatch("found taxon " + scanner.word() + " instead of " + template.getName(pop));
+            			}
+            			numDone = checkNode(pop, --pending, numDone);
+            			last = template.getNodeNum(pop++);
+            			if (last >= 0) m.startNode(last);
+            			nameNext = false;
+            		} else if (stateNext && isTrueNode) { //state of the node
+            			if (last >= 0) m.setState(last, scanner.wordByte());
+            		} else if (stateNext && !isTrueNode) { //state on the path
+            			byte tempState = scanner.wordByte();
+            			int tempToken = scanner.nextToken();
+            			if (tempToken != infoSeparator) { //redundant state
+            				nameNext = true;
+            				stateNext = false;
+            			} else if (last >= 0) { 
+            				m.addPathState(last, tempState);
+            			}
+            			scanner.pushBack();
+            		} else {
+            			System.err.println("Error: didn't expect this name/state here: " + scanner.word());
+            		}
+            		break;
+            	case MappingScanner.TT_NUMBER:
+            		if (last >= 0) {
+            			if (m.getPathStateSize(last) == 0) {
+            				m.setTime(last, scanner.number());
+            			} else {
+            				m.addPathTime(last, scanner.number());
+            			}
+            		}
+            		nameNext = false;
+            		stateNext = true;
+            		isTrueNode = false;
+            		break;
+            	case infoSeparator:
+            		nameNext = false;
+            		stateNext = true;
+            	    break;
+            	case treeTerminator:
+            		if (nameNext) { //root
+            			if (pop == numParsed) {
+            				throw mismatch("it has more nodes");
+            			}
+            			numDone = checkNode(pop, --pending, numDone);
+            			last = template.getNodeNum(pop++);
+            			if (last >= 0) m.startNode(last);
+            		}
+            	    EOT = true;
+            	    nameNext = false;
+            	    break;
+            	case openBracket:
+            	case childSeparator: //a new node starts under the current one
+            		if (pending == pendingChildren.length) {
+            			throw mismatch("it has more nodes");
+            		}
+            		pendingChildren[pending++] = 0;
+            	    nameNext = true;
+            	    stateNext = false;
+            	    break;
+            	case closeBracket:
+            		nameNext = true;
+            	    break;
+            	default:
+            	    debugOutput("default " + (char)thisToken);
+            		break;
+            }
+        }
+        if (pop != numParsed) {
+            throw mismatch("it has " + pop + " nodes instead of " + numParsed);
+        }
+        m.finish();
+        return m;
+    }
+    
+    /**
+     * Check a node completed by {@link #parseMapping(byte[], int)} against the template: 
+     * its number of children, and the parent of its children
+     * @param pop completion index of the node
+     * @param pending index of the node in {@link #pendingChildren}, its parent is just before it
+     * @param numDone number of nodes in {@link #done}
+     * @return new number of nodes in {@link #done}
+     * @throws IOException if the node does not match the template
+     */
+    private int checkNode(int pop, int pending, int numDone) throws IOException
+    {
+        if (pending < 0) {
+            throw mismatch("a node is outside the root");
+        }
+        int children = pendingChildren[pending];
+        if (children != template.getChildCount(pop)) {
+            throw mismatch("node " + pop + " has " + children + " children instead of " + template.getChildCount(pop));
+        }
+        //its children are the last nodes completed
+        for (int c = numDone - children; c < numDone; c++) {
+            if (template.getParentPop(done[c]) != pop) {
+                throw mismatch("node " + done[c] + " is not a child of node " + pop);
+            }
+        }
+        numDone -= children;
+        done[numDone++] = pop;
+        if (pending > 0) pendingChildren[pending-1]++;
+        return numDone;
+    }
+    
+    /**
+     * Return the exception thrown when a line does not match the template
+     * @param reason
+     * @return exception
+     */
+    private static IOException mismatch(String reason)
+    {
+        return new IOException("Tree does not match the topology of the first tree: " + reason);
+    }
+
     /**
      * Debug printout function.  Avoid using the system calls and use this, and set flag
      * {@link #debugOutput} depending on debugging or not.
@@ -0,0 +1,161 @@
+package reporter;
+
+/**
+ * Benchmark of the parsing of large trees.
+ * Trees of growing size are generated as .map lines: caterpillar-like (one leaf added at each level,
+ * as deep as possible) and balanced, with a two-taxon outgroup under the root, and a small tree whose
+ * outgroup is a large caterpillar, which is removed when the tree is parsed. Each tree is parsed with
+ * TreeParser.tokenize() (linking, duplicate names, numbering and outgroup removal) and the time per leaf
+ * is printed: it stays roughly constant when the tree is processed in linear time.
+ * Usage: java reporter.TreeScaling [maxLeaves] [repeats]
+ * @author Hui-Jie Lee
+ *
+ */
+public class TreeScaling {
+	
+	/** Smallest number of leaves */
+	private static final int MIN_LEAVES = 1000;
+	
+	/** Names of the shapes */
+	private static final String[] SHAPES = {"caterpillar", "balanced", "deep outgroup"};
+	
+	public static void main(String[] args) {
+		int maxLeaves = (args.length > 0) ? Integer.parseInt(args[0]) : 32000;
+		int repeats = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+		TreeParser parser = new TreeParser("");
+		for (int shape = 0; shape < SHAPES.length; shape++) {
+			System.out.println(SHAPES[shape]);
+			System.out.println("leaves\tms/tree\tns/leaf");
+			for (int n = MIN_LEAVES; n <= maxLeaves; n *= 2) {
+				byte[] line;
+				int expected = n; //leaves left after the outgroup is removed
+				if (shape == 2) {
+					line = deepOutgroup(n);
+					String[] taxa = new String[n];
+					for (int i = 0; i < n; i++) {
+						taxa[i] = "O" + i;
+					}
+					parser.setOutgroup(taxa);
+					expected = 2;
+				} else {
+					line = (shape == 0) ? caterpillar(n) : balanced(n);
+					parser.setOutgroup(new String[] {"Out1", "Out2"});
+				}
+				parser.tokenize(line, line.length); //warm up
+				long start = System.nanoTime();
+				for (int r = 0; r < repeats; r++) {
+					Tree t = parser.tokenize(line, line.length);
+					if (t.getNumLeaves() != expected) {
+						System.err.println("Error: " + t.getNumLeaves() + " leaves parsed instead of " + expected);
+					}
+				}
+				double ns = (double) (System.nanoTime() - start) / repeats;
+				System.out.println(n + "\t" + String.format("%.2f", ns / 1e6) + "\t" + String.format("%.0f", ns / n));
+			}
+		}
+	}
+	
+	/**
+	 * Generate an unrooted tree whose first subtree is a caterpillar: (((T0,T1),T2),T3)...
+	 * @param n number of leaves, without the outgroup
+	 * @return .map line
+	 */
+	static byte[] caterpillar(int n) {
+		StringBuilder sb = new StringBuilder(40 * n);
+		sb.append("(");
+		for (int i = 0; i < n-2; i++) {
+			sb.append("(");
+		}
+		leaf(sb, 0);
+		for (int i = 1; i < n-1; i++) {
+			sb.append(",");
+			leaf(sb, i);
+			sb.append(")_G:0.1:G");
+		}
+		sb.append(",");
+		leaf(sb, n-1);
+		sb.append(",");
+		outgroup(sb);
+		sb.append(")_G;");
+		return ascii(sb);
+	}
+	
+	/**
+	 * Generate an unrooted tree whose first subtree is balanced
+	 * @param n number of leaves, without the outgroup
+	 * @return .map line
+	 */
+	static byte[] balanced(int n) {
+		StringBuilder sb = new StringBuilder(40 * n);
+		sb.append("(");
+		subtree(sb, 0, n-1);
+		sb.append(",");
+		leaf(sb, n-1);
+		sb.append(",");
+		outgroup(sb);
+		sb.append(")_G;");
+		return ascii(sb);
+	}
+	
+	/**
+	 * Generate an unrooted tree with two leaves and a caterpillar outgroup O0 ... On-1
+	 * @param n number of leaves of the outgroup
+	 * @return .map line
+	 */
+	static byte[] deepOutgroup(int n) {
+		StringBuilder sb = new StringBuilder(40 * n);
+		sb.append("(");
+		leaf(sb, 0);
+		sb.append(",");
+		leaf(sb, 1);
+		sb.append(",");
+		for (int i = 0; i < n-1; i++) {
+			sb.append("(");
+		}
+		sb.append("O0_G:0.1:G");
+		for (int i = 1; i < n; i++) {
+			sb.append(",O").append(i).append("_G:0.1:G)_G:0.1:G");
+		}
+		sb.append(")_G;");
+		return ascii(sb);
+	}
+	
+	/**
+	 * Append a balanced subtree of the leaves from ... to-1. The depth is logarithmic.
+	 */
+	private static void subtree(StringBuilder sb, int from, int to) {
+		if (to - from == 1) {
+			leaf(sb, from);
+			return;
+		}
+		int mid = (from + to) / 2;
+		sb.append("(");
+		subtree(sb, from, mid);
+		sb.append(",");
+		subtree(sb, mid, to);
+		sb.append(")_G:0.1:G");
+	}
+	
+	/**
+	 * Append a leaf with one substitution event
+	 */
+	private static void leaf(StringBuilder sb, int i) {
+		sb.append("T").append(i).append("_G:0.1:C:0.05:G");
+	}
+	
+	/**
+	 * Append the outgroup (Out1, Out2)
+	 */
+	private static void outgroup(StringBuilder sb) {
+		sb.append("(Out1_G:0.1:G,Out2_G:0.1:G)_G:0.1:G");
+	}
+	
+	private static byte[] ascii(StringBuilder sb) {
+		byte[] b = new byte[sb.length()];
+		for (int i = 0; i < b.length; i++) {
+			b[i] = (byte) sb.charAt(i);
+		}
+		return b;
+	}
+	
+}
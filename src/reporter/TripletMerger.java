@@ -0,0 +1,105 @@
+package reporter;
+
+/**
+ * Merge the substitution events of three sites on each branch into the path of the triplet.
+ * The event times of each site are already sorted, so the three timelines are merged in a single pass
+ * and each interval and transition is passed to a {@link TripletVisitor} as soon as it is known.
+ * Events of different sites at the same time are all kept, in the order of the sites, 
+ * separated by an interval of length 0.
+ * A branch without event in any of the three sites takes a fast path: a single interval covering the whole branch.
+ * @author Hui-Jie Lee
+ *
+ */
+public class TripletMerger {
+	
+	/** Index of the next event of each site */
+	private int[] eventIndex = new int[3];
+	
+	/** Number of events of each site on the branch being merged */
+	private int[] eventCount = new int[3];
+	
+	/** Time of the next event of each site on the branch being merged, measured from the parent node */
+	private double[] nextTime = new double[3];
+	
+	/**
+	 * Merge all branches
+	 * @param sites mappings of 3 sites, sharing the same topology and node numbering
+	 * @param visitor
+	 */
+	public void merge(SiteMapping[] sites, TripletVisitor visitor) {
+		if (!sites[0].hasEvents() && !sites[1].hasEvents() && !sites[2].hasEvents()) {
+			for (int i = 0; i < sites[0].getNumBranches(); i++) {
+				mergeConstantBranch(sites, i, visitor);
+			}
+			return;
+		}
+		for (int i = 0; i < sites[0].getNumBranches(); i++) {
+			mergeBranch(sites, i, visitor);
+		}
+	}
+	
+	/**
+	 * Merge a given branch.
+	 * The path starts with the triplet of the parent states and ends with the triplet of the node states.
+	 * The last interval is the branch length of site 2 minus the time at the last substitution event.
+	 * @param sites mappings of 3 sites
+	 * @param branchIndex index of the given branch (the index of the node that ends the branch)
+	 * @param visitor
+	 */
+	public void mergeBranch(SiteMapping[] sites, int branchIndex, TripletVisitor visitor) {
+		int numEvents = sites[0].getEventCount(branchIndex) + sites[1].getEventCount(branchIndex) + sites[2].getEventCount(branchIndex);
+		if (numEvents == 0) {
+			mergeConstantBranch(sites, branchIndex, visitor);
+			return;
+		}
+		for (int i = 0; i < 3; i ++) {
+			SiteMapping site = sites[i];
+			eventIndex[i] = 0;
+			eventCount[i] = site.getEventCount(branchIndex);
+			nextTime[i] = (eventCount[i] > 0) ? site.getEventTimes()[site.getEventStart(branchIndex)] : Double.POSITIVE_INFINITY;
+		}
+		
+		//starting state (triplet)
+		int triplet = Nucleotide.triplet(sites[0].getParentState(branchIndex), sites[1].getParentState(branchIndex), sites[2].getParentState(branchIndex));
+		
+		double previous = 0.0;
+		for (int e = 0; e < numEvents; e++) {
+			//site with the earliest next event, the first site wins ties
+			int position = 0;
+			if (nextTime[1] < nextTime[position]) position = 1;
+			if (nextTime[2] < nextTime[position]) position = 2;
+			double time = nextTime[position];
+			visitor.visitInterval(branchIndex, triplet, time - previous); //time interval length but not cumulative time
+			previous = time;
+			SiteMapping site = sites[position];
+			int start = site.getEventStart(branchIndex);
+			int k = eventIndex[position]++;
+			int next = Nucleotide.replace(triplet, position, site.getEventStates()[start+k]); //replace site at position
+			visitor.visitTransition(branchIndex, triplet, next);
+			triplet = next;
+			nextTime[position] = (k+1 < eventCount[position]) ? time + site.getEventTimes()[start+k+1] : Double.POSITIVE_INFINITY;
+		}
+		//last time interval (branch length - last event time)
+		double branchLength = sites[1].getBranchLength(branchIndex);
+		visitor.visitInterval(branchIndex, triplet, branchLength-previous);
+		//last state. i.e. state at current node
+		visitor.visitTransition(branchIndex, triplet, Nucleotide.triplet(sites[0].getState(branchIndex), sites[1].getState(branchIndex), sites[2].getState(branchIndex)));
+		visitor.endBranch(branchIndex, branchLength);
+	}
+	
+	/**
+	 * Merge a branch without event in any of the three sites: the parent triplet is kept for the whole branch length.
+	 * The transition to the triplet of the node states is still passed to the visitor.
+	 * @param sites mappings of 3 sites
+	 * @param branchIndex index of the given branch
+	 * @param visitor
+	 */
+	private void mergeConstantBranch(SiteMapping[] sites, int branchIndex, TripletVisitor visitor) {
+		int triplet = Nucleotide.triplet(sites[0].getParentState(branchIndex), sites[1].getParentState(branchIndex), sites[2].getParentState(branchIndex));
+		double branchLength = sites[1].getBranchLength(branchIndex);
+		visitor.visitInterval(branchIndex, triplet, branchLength);
+		visitor.visitTransition(branchIndex, triplet, Nucleotide.triplet(sites[0].getState(branchIndex), sites[1].getState(branchIndex), sites[2].getState(branchIndex)));
+		visitor.endBranch(branchIndex, branchLength);
+	}
+	
+}
@@ -1,11 +1,7 @@
 package reporter;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Set;
-import java.util.TreeMap;
+import java.util.Arrays;
 
 /**
  * Parse three consecutive sites /triplet at a time.
@@ -20,8 +16,45 @@ import java.util.TreeMap;
  */
 public class TripletParser implements SiteParser {
 	
-    /** Store three trees for three sites **/
-	private Tree[] trees;
+	/** Changes of non-CpG sites (from, to) in the order of their index 0 ... 11, as documented above */
+	private static final String[] NON_CPG_CHANGES = {"GC", "CG", "GT", "CA", "TA", "AT", "TG", "AC", "GA", "CT", "AG", "TC"};
+	
+	/** Changes of CpG sites (from, to) in the order of their index 12 ... 17, as documented above */
+	private static final String[] CPG_CHANGES = {"GC", "CG", "GT", "CA", "GA", "CT"};
+	
+	/** Index of the change from triplet code f to triplet code t at CHANGE_TYPE[(f << 6) | t], -1 if the second site does not change */
+	private static final byte[] CHANGE_TYPE = new byte[Nucleotide.NUM_TRIPLETS * Nucleotide.NUM_TRIPLETS];
+	
+	/** Index of the state (0 ... 5, as documented above) of each triplet code */
+	private static final byte[] STATE_CLASS = new byte[Nucleotide.NUM_TRIPLETS];
+	
+	static {
+		byte[] nonCpG = new byte[16]; //index of the change of the second site, from * 4 + to
+		byte[] cpG = new byte[16];
+		Arrays.fill(nonCpG, (byte) -1);
+		Arrays.fill(cpG, (byte) -1);
+		for (int k = 0; k < NON_CPG_CHANGES.length; k++) {
+			String c = NON_CPG_CHANGES[k];
+			nonCpG[Nucleotide.code(c.charAt(0)) * 4 + Nucleotide.code(c.charAt(1))] = (byte) k;
+		}
+		for (int k = 0; k < CPG_CHANGES.length; k++) {
+			String c = CPG_CHANGES[k];
+			cpG[Nucleotide.code(c.charAt(0)) * 4 + Nucleotide.code(c.charAt(1))] = (byte) (NON_CPG_CHANGES.length + k);
+		}
+		for (int f = 0; f < Nucleotide.NUM_TRIPLETS; f++) {
+			boolean isCpG = Nucleotide.isCpG(f);
+			int from = Nucleotide.site(f, 1);
+			//non-CpG G, C, T, A are states 0 ... 3; a CpG second site is G (state 4) or C (state 5)
+			STATE_CLASS[f] = (byte) (isCpG ? 4 + from : from);
+			for (int t = 0; t < Nucleotide.NUM_TRIPLETS; t++) {
+				int to = Nucleotide.site(t, 1);
+				CHANGE_TYPE[(f << 6) | t] = isCpG ? cpG[from * 4 + to] : nonCpG[from * 4 + to];
+			}
+		}
+	}
+	
+    /** Store the mappings of the three sites **/
+	private SiteMapping[] sites;
     
     /** Store number of changes  
      *  dim = (# of branches) x 18
@@ -43,15 +76,30 @@ public class TripletParser implements SiteParser {
      **/
 	private double[][] propStates;
     
-	/** Store path state as an array of Arraylist of String, each String contains 3 characters (triplet). 
-	 *  There are branchNum of such Arraylist for each branch.
+	/** Store path state of all branches as triplet codes (see {@link Nucleotide#triplet(int, int, int)}). 
+	 *  The path of branch j is pathState[pathStart[j]] ... pathState[pathStart[j]+pathLength[j]-1].
      **/
-	private ArrayList<String>[] pathState;
+	private byte[] pathState;
     
-	/** Store path time as an array of arraylist of double.
-	 * There are branchNum of such arraylist for each branch 
+	/** Store path time of all branches. The time spent in pathState[k] is pathTime[k].
+	 *  There is one time less than states on each branch.
      **/
-	private ArrayList<Double>[] pathTime;
+	private double[] pathTime;
+	
+	/** Start of the path of each branch in pathState and pathTime */
+	private int[] pathStart;
+	
+	/** Number of states in the path of each branch */
+	private int[] pathLength;
+	
+	/** Number of entries used in pathState and pathTime */
+	private int pathSize;
+	
+	/** Merger of the three timelines, filling pathState and pathTime through {@link PathRecorder} */
+	private TripletMerger merger = new TripletMerger();
+	
+	/** Visitor storing the merged path of a branch */
+	private PathRecorder recorder = new PathRecorder();
 	
 	/** Get state G/C/T/A at the root */
 	private int rootState;
@@ -61,24 +109,30 @@ public class TripletParser implements SiteParser {
 	 * @param trees: 3 trees for 3 sites
 	 */
 	public TripletParser(Tree[] trees) {
-		this.trees = new Tree[3];
+		this(new SiteMapping[] {trees[0].getMapping(), trees[1].getMapping(), trees[2].getMapping()});
+	}
+	
+	/**
+	 * Constructor
+	 * @param sites: mappings of 3 sites, sharing the same topology and node numbering
+	 */
+	public TripletParser(SiteMapping[] sites) {
+		this.sites = new SiteMapping[3];
 		for (int i = 0; i < 3; i++) {
-			this.trees[i] = trees[i];
+			this.sites[i] = sites[i];
 		}
 		
-		numberOfChanges = new int[trees[0].getNumBranches()][18];
-		timeOfStates = new double[trees[0].getNumBranches()][6];
-		branchLengths = new double[trees[0].getNumBranches()];
-		propStates = new double[trees[0].getNumBranches()][6];
+		int branchNum = sites[0].getNumBranches();
+		numberOfChanges = new int[branchNum][18];
+		timeOfStates = new double[branchNum][6];
+		branchLengths = new double[branchNum];
+		propStates = new double[branchNum][6];
 	
-		pathState = (ArrayList<String>[])new ArrayList[trees[0].getNumBranches()];
-		pathTime = (ArrayList<Double>[])new ArrayList[trees[0].getNumBranches()]; 
+		pathState = new byte[4 * branchNum];
+		pathTime = new double[4 * branchNum];
+		pathStart = new int[branchNum];
+		pathLength = new int[branchNum];
 		setRootState();
-
-		for(int i = 0; i < trees[0].getNumBranches(); i++) {
-			pathState[i] = new ArrayList<String>();
-			pathTime[i] = new ArrayList<Double>();
-		}
 		
 		constructWholePath();
 	
@@ -111,62 +165,68 @@ public class TripletParser implements SiteParser {
 	 * path state: triplet starting from the parent node to current node
 	 * path time: time interval between substitution events.
 	 *            The last time will be branch length of site 2 minus the time at the last substitution event.
+	 * The three timelines are merged by {@link TripletMerger}.
 	 * @param branchIndex index of the given branch (the index of the node that ends the branch)
 	 */
 	public void constructPath(int branchIndex) {
-		ArrayList<String>[] state = (ArrayList<String>[])new ArrayList[3];
-		ArrayList<Double>[] time = (ArrayList<Double>[])new ArrayList[3];
-		HashMap<Double, Integer> map = new HashMap<Double, Integer>();
-		
-		//create a HashMap: key = time when substitutions occurred, value = site where substitutions occurred
-		//do not add the last time in the HashMap b/c they will be the same for all sites.
-		//i.e. last time = branch length
+		int numEvents = 0;
 		for (int i = 0; i < 3; i ++) {
-			state[i] = trees[i].getNodeByNodeNum(branchIndex).getPathState();
-			time[i] = cumulativeSum(trees[i].getNodeByNodeNum(branchIndex).getPathTime());
-			for (int j = 0; j < time[i].size()-1; j ++) {
-				map.put(time[i].get(j), i);
-			}
+			numEvents += sites[i].getEventCount(branchIndex);
 		}
+		ensurePathCapacity(numEvents + 2);
+		pathStart[branchIndex] = pathSize;
+		recorder.first = true;
+		merger.mergeBranch(sites, branchIndex, recorder);
+		pathLength[branchIndex] = pathSize - pathStart[branchIndex];
+	}
+	
+	/**
+	 * Store the visited path in pathState and pathTime. The capacity is ensured by constructPath().
+	 */
+	private class PathRecorder implements TripletVisitor {
+		/** True until the starting state of the branch is stored */
+		private boolean first;
 		
-		//starting state (triplet)
-		int[] index = new int[3]; //track the index of states for three sites
-		pathState[branchIndex].add(state[0].get(index[0])+state[1].get(index[1])+state[2].get(index[2]));
+		public void visitInterval(int branch, int triplet, double time) {
+			if (first) {
+				pathState[pathSize] = (byte) triplet;
+				first = false;
+			}
+			pathTime[pathSize++] = time;
+		}
 		
-		//sort the HashMap by key => create a TreeMap (ordered) from HashMap
-        Map<Double, Integer> treemap = new TreeMap<Double, Integer>(map);
-        
-        //iterate the TreeMap
-        Set set = treemap.entrySet();
-        Iterator iterator = set.iterator();
-        double previous = 0.0;
-        while(iterator.hasNext()) {
-             Map.Entry me = (Map.Entry)iterator.next();
-             //System.out.print(me.getKey() + ": ");
-             //System.out.println(me.getValue());
-             pathTime[branchIndex].add(((Double) me.getKey() - previous)); //store time interval length but not cumulative time
-             previous = (Double) me.getKey();
-             int position = (Integer) me.getValue();
-             index[position] ++; //increment the index of pathState[position]
-             char[] lastState = pathState[branchIndex].get(pathState[branchIndex].size()-1).toCharArray();
-             lastState[position] = state[position].get(index[position]).charAt(0); //replace character at position
-             pathState[branchIndex].add(String.valueOf(lastState));             
-        }
-        //add last time interval (branch length - last event time)
-        pathTime[branchIndex].add(trees[1].getBranchLength()[branchIndex]-previous);
-        //add last state. i.e. state at current node
-        pathState[branchIndex].add(state[0].get(state[0].size()-1)+state[1].get(state[1].size()-1)+state[2].get(state[2].size()-1));        
+		public void visitTransition(int branch, int from, int to) {
+			pathState[pathSize] = (byte) to;
+		}
 		
+		public void endBranch(int branch, double branchLength) {
+			pathSize++;
+		}
 	}
 	
 	/**
-	 * Return pathState for a given branch
+	 * Make sure that pathState and pathTime can hold more entries
+	 * @param more number of entries to be added
+	 */
+	private void ensurePathCapacity(int more) {
+		if (pathSize + more > pathState.length) {
+			int size = Math.max(2 * pathState.length, pathSize + more);
+			pathState = Arrays.copyOf(pathState, size);
+			pathTime = Arrays.copyOf(pathTime, size);
+		}
+	}
+	
+	/**
+	 * Return pathState for a given branch, decoded into triplets of letters
 	 * @param branchIndex
 	 * @return
 	 */
 	public ArrayList<String> getPathStateAtBranch(int branchIndex) {
-		//constructPath(branchIndex);
-		return pathState[branchIndex];
+		ArrayList<String> list = new ArrayList<String>();
+		for (int k = 0; k < pathLength[branchIndex]; k++) {
+			list.add(Nucleotide.toString(pathState[pathStart[branchIndex]+k]));
+		}
+		return list;
 	}
 	
 	/**
@@ -175,8 +235,11 @@ public class TripletParser implements SiteParser {
 	 * @return
 	 */
 	public ArrayList<Double> getPathTimeAtBranch(int branchIndex) {
-		//constructPath(branchIndex);
-		return pathTime[branchIndex];
+		ArrayList<Double> list = new ArrayList<Double>();
+		for (int k = 0; k < pathLength[branchIndex]-1; k++) {
+			list.add(pathTime[pathStart[branchIndex]+k]);
+		}
+		return list;
 	} 
 	
 	/**
@@ -222,67 +285,37 @@ public class TripletParser implements SiteParser {
 	private int[] computeNumberOfChangesAtBranch(int branchIndex) {
 		int[] count = new int[18];
 		
-		for (int i = 0; i < pathState[branchIndex].size() - 1; i++) {
-			if(!pathState[branchIndex].get(i).contains("CG")) { //non-CpG site
-				if(pathState[branchIndex].get(i).charAt(1) == 'G') {
-					if(pathState[branchIndex].get(i+1).charAt(1) == 'C') {
-						count[0] ++;
-					} else if(pathState[branchIndex].get(i+1).charAt(1) == 'T') {
-						count[2] ++;
-					} else if(pathState[branchIndex].get(i+1).charAt(1) == 'A') {
-						count[8] ++;
-					}
-				} else if(pathState[branchIndex].get(i).charAt(1) == 'C') {
-					if(pathState[branchIndex].get(i+1).charAt(1) == 'G') {
-						count[1] ++;
-					} else if(pathState[branchIndex].get(i+1).charAt(1) == 'T') {
-						count[9] ++;
-					} else if(pathState[branchIndex].get(i+1).charAt(1) == 'A') {
-						count[3] ++;
-					}
-				} else if(pathState[branchIndex].get(i).charAt(1) == 'T') {
-					if(pathState[branchIndex].get(i+1).charAt(1) == 'G') {
-						count[6] ++;
-					} else if(pathState[branchIndex].get(i+1).charAt(1) == 'C') {
-						count[11] ++;
-					} else if(pathState[branchIndex].get(i+1).charAt(1) == 'A') {
-						count[4] ++;
-					}
-				} else if(pathState[branchIndex].get(i).charAt(1) == 'A') {
-					if(pathState[branchIndex].get(i+1).charAt(1) == 'G') {
-						count[10] ++;
-					} else if(pathState[branchIndex].get(i+1).charAt(1) == 'C') {
-						count[7] ++;
-					} else if(pathState[branchIndex].get(i+1).charAt(1) == 'T') {
-						count[5] ++;
-					}
-				}
-			} else { //CpG site
-				if(pathState[branchIndex].get(i).charAt(1) == 'G') {
-					if(pathState[branchIndex].get(i+1).charAt(1) == 'C') {
-						count[12] ++;
-					} else if(pathState[branchIndex].get(i+1).charAt(1) == 'T') {
-						count[14] ++;
-					} else if(pathState[branchIndex].get(i+1).charAt(1) == 'A') {
-						count[16] ++;
-					}
-				} else if(pathState[branchIndex].get(i).charAt(1) == 'C') {
-					if(pathState[branchIndex].get(i+1).charAt(1) == 'G') {
-						count[13] ++;
-					} else if(pathState[branchIndex].get(i+1).charAt(1) == 'T') {
-						count[17] ++;
-					} else if(pathState[branchIndex].get(i+1).charAt(1) == 'A') {
-						count[15] ++;
-					}
-				}
-				
+		int start = pathStart[branchIndex];
+		for (int i = start; i < start + pathLength[branchIndex] - 1; i++) {
+			int type = changeType(pathState[i], pathState[i+1]);
+			if (type >= 0) {
+				count[type] ++;
 			}
-			
 		}
 		
 		return count;
 	}
 	
+	/**
+	 * Return the type of change of the second site between two consecutive triplets (table lookup).
+	 * @param from triplet code before the change
+	 * @param to triplet code after the change
+	 * @return index 0 ... 17 of the change, -1 if the second site does not change
+	 */
+	public static int changeType(int from, int to) {
+		return CHANGE_TYPE[(from << 6) | to];
+	}
+	
+	/**
+	 * Return the state of the second site of a triplet (table lookup):
+	 * non-CpG G (0), non-CpG C (1), non-CpG T (2), non-CpG A (3), CpG G (4), CpG C (5)
+	 * @param triplet triplet code
+	 * @return index 0 ... 5 of the state
+	 */
+	public static int stateClass(int triplet) {
+		return STATE_CLASS[triplet];
+	}
+	
 	/**
 	 * Assign times of each state on each branch.
 	 * There are 6 states: non-CpG G, non-CpG C, non-CpG T, non-CpG A, CpG G, CpG C
@@ -304,24 +337,9 @@ public class TripletParser implements SiteParser {
 	private double[] computeTimeOfStatesAtBranch(int branchIndex) {
 		double[] timeState = new double[6];
 		
-		for (int i = 0; i < pathState[branchIndex].size()-1; i++) {
-			if(!pathState[branchIndex].get(i).contains("CG")) { //non-CpG
-				if(pathState[branchIndex].get(i).charAt(1) == 'G') {
-					timeState[0] += pathTime[branchIndex].get(i);
-				} else if(pathState[branchIndex].get(i).charAt(1) == 'C') {
-					timeState[1] += pathTime[branchIndex].get(i);
-				} else if(pathState[branchIndex].get(i).charAt(1) == 'T') {
-					timeState[2] += pathTime[branchIndex].get(i);
-				} else if(pathState[branchIndex].get(i).charAt(1) == 'A') {
-					timeState[3] += pathTime[branchIndex].get(i);
-				} 
-			} else {	//CpG
-				if(pathState[branchIndex].get(i).charAt(1) == 'G') {
-					timeState[4] += pathTime[branchIndex].get(i);
-				} else if(pathState[branchIndex].get(i).charAt(1) == 'C') {
-					timeState[5] += pathTime[branchIndex].get(i);
-				}
-			}
+		int start = pathStart[branchIndex];
+		for (int i = start; i < start + pathLength[branchIndex] - 1; i++) {
+			timeState[STATE_CLASS[pathState[i]]] += pathTime[i];
 		}
 		
 		return timeState;
@@ -334,8 +352,8 @@ public class TripletParser implements SiteParser {
 	 */
 	private double[] computeBranchLength() {
 		double[] br = new double[numberOfBranches()];
-		for (int i = 0; i < trees[1].getNumBranches(); i++) {
-			br[i] = trees[1].getBranchLength()[i];
+		for (int i = 0; i < sites[1].getNumBranches(); i++) {
+			br[i] = sites[1].getBranchLength(i);
 		}
 		return br;
 	}
@@ -424,17 +442,8 @@ public class TripletParser implements SiteParser {
 	 * Set rootStateCount by the state of the second position
 	 */
 	private void setRootState() {
-		String s = trees[1].getRoot().getState();
-		if(s.equals("G")) {
-			this.rootState = 0;
-		} else if (s.equals("C")) {
-			this.rootState = 1;
-		} else if (s.equals("T")) {
-			this.rootState = 2;
-		} else if (s.equals("A")) {
-			this.rootState = 3;
-		}
-		
+		//nucleotide codes are in the same order G, C, T, A
+		this.rootState = sites[1].getRootState();
 	}
 	
 	public int getRootState() {
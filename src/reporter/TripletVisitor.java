@@ -0,0 +1,22 @@
+package reporter;
+
+/**
+ * Receive the path of a triplet on each branch while the three sites are merged by {@link TripletMerger}.
+ * For a branch with n events, the calls are: 
+ * visitInterval, visitTransition (n times), then visitInterval, the last visitTransition 
+ * (to the state of the node) and endBranch.
+ * @author Hui-Jie Lee
+ *
+ */
+public interface TripletVisitor {
+	
+	/** An interval of a branch spent in a triplet state, in order from the parent node **/
+	public void visitInterval(int branch, int triplet, double time);
+	
+	/** A change between two consecutive triplet states of a branch **/
+	public void visitTransition(int branch, int from, int to);
+	
+	/** End of a branch. The branch length is the one of the second site **/
+	public void endBranch(int branch, double branchLength);
+	
+}